@@ -0,0 +1,14 @@
+package chatGPT;
+
+/**
+ * The text of an LLM answer and the model that gave it, which may be any model of the endpoint pool.
+ */
+public class Answer {
+    public final String text;
+    public final String model;
+
+    public Answer(String text, String model) {
+        this.text = text;
+        this.model = model;
+    }
+}
@@ -0,0 +1,327 @@
+package chatGPT;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent content-addressed cache of LLM answers.
+ * <p>
+ * Answers are keyed by the SHA-256 of (model, temperature, maxTokens, prompt, tool version) and stored
+ * as gzip blobs under {@code blobs/}. {@code index.bin} is a memory-mapped open-addressing hash table
+ * with one fixed-size slot per key holding the compressed size and the last access time, so a lookup
+ * touches a few bytes of the mapping and at most one blob file. When the blobs grow beyond
+ * {@code maxBytes} the least recently used answers are evicted.
+ */
+public class AnswerCache implements Closeable {
+    /**
+     * The version of the pom, so that a new release does not replay the answers to the prompts of an old one.
+     */
+    public static final String TOOL_VERSION = readToolVersion();
+    private static final int MAGIC = 0x4c535043;
+    private static final int HEADER_SIZE = 32;
+    private static final int KEY_SIZE = 32;
+    private static final int SLOT_SIZE = 48;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final int EMPTY = 0, USED = 1, DELETED = 2;
+
+    private final Path dir;
+    private final Path indexFile;
+    private final long maxBytes;
+    private FileChannel channel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int used;
+    private int deleted;
+    private long totalBytes;
+    private long hits;
+    private long misses;
+
+    public AnswerCache(File dir, long maxBytes) throws IOException {
+        this.dir = dir.toPath();
+        this.indexFile = this.dir.resolve("index.bin");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.dir.resolve("blobs"));
+        if (Files.exists(indexFile) && Files.size(indexFile) >= HEADER_SIZE) {
+            open(indexFile);
+            if (index.getInt(0) != MAGIC) {
+                close();
+                create(INITIAL_CAPACITY);
+            }
+        } else {
+            create(INITIAL_CAPACITY);
+        }
+    }
+
+    public static byte[] key(String model, double temperature, int maxTokens, String prompt, String toolVersion) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String text = model + "\u0000" + temperature + "\u0000" + maxTokens + "\u0000" + toolVersion + "\u0000" + prompt;
+            return digest.digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readToolVersion() {
+        // filled in by Maven resource filtering; the manifest of a packaged jar is the fallback
+        try (InputStream in = AnswerCache.class.getResourceAsStream("/extractByGPT.properties")) {
+            if (in != null) {
+                Properties properties = new Properties();
+                properties.load(in);
+                String version = properties.getProperty("version");
+                if (version != null && !version.startsWith("${")) {
+                    return version;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        String version = AnswerCache.class.getPackage().getImplementationVersion();
+        return version != null ? version : "unknown";
+    }
+
+    /**
+     * @return the cached answer, or null if the key is unknown
+     */
+    public synchronized String get(byte[] key) throws IOException {
+        int slot = find(key);
+        if (slot < 0) {
+            misses++;
+            return null;
+        }
+        byte[] blob;
+        try {
+            blob = Files.readAllBytes(blobPath(key));
+        } catch (NoSuchFileException e) {
+            remove(slot);
+            misses++;
+            return null;
+        }
+        index.putLong(slotOffset(slot) + KEY_SIZE, System.currentTimeMillis());
+        hits++;
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(blob))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public synchronized void put(byte[] key, String answer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(answer.getBytes(StandardCharsets.UTF_8));
+        }
+        Path blob = blobPath(key);
+        Files.createDirectories(blob.getParent());
+        Path tmp = blob.resolveSibling(blob.getFileName() + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        Files.move(tmp, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        int slot = find(key);
+        if (slot >= 0) {
+            totalBytes -= index.getInt(slotOffset(slot) + KEY_SIZE + 8);
+        } else {
+            if ((used + deleted + 1) * 10L > capacity * 7L) {
+                rehash(used + 1 > capacity / 3 ? capacity * 2 : capacity);
+            }
+            slot = insertionSlot(key);
+            if (state(slot) == DELETED) {
+                deleted--;
+            }
+            used++;
+            index.put(slotOffset(slot), key);
+        }
+        int offset = slotOffset(slot);
+        index.putLong(offset + KEY_SIZE, System.currentTimeMillis());
+        index.putInt(offset + KEY_SIZE + 8, bytes.size());
+        index.putInt(offset + KEY_SIZE + 12, USED);
+        totalBytes += bytes.size();
+        writeHeader();
+        if (totalBytes > maxBytes) {
+            evict(maxBytes * 9 / 10);
+        }
+    }
+
+    /**
+     * Drops least recently used answers until the blobs take at most {@code targetBytes}.
+     */
+    private void evict(long targetBytes) throws IOException {
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < capacity; i++) {
+            if (state(i) == USED) {
+                slots.add(i);
+            }
+        }
+        slots.sort(Comparator.comparingLong(i -> index.getLong(slotOffset(i) + KEY_SIZE)));
+        for (int slot : slots) {
+            if (totalBytes <= targetBytes) {
+                break;
+            }
+            Files.deleteIfExists(blobPath(keyAt(slot)));
+            remove(slot);
+        }
+    }
+
+    private void remove(int slot) {
+        int offset = slotOffset(slot);
+        totalBytes -= index.getInt(offset + KEY_SIZE + 8);
+        index.putInt(offset + KEY_SIZE + 12, DELETED);
+        used--;
+        deleted++;
+        writeHeader();
+    }
+
+    private int find(byte[] key) {
+        int mask = capacity - 1;
+        for (int i = hash(key) & mask, probes = 0; probes < capacity; i = (i + 1) & mask, probes++) {
+            int state = state(i);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == USED && Arrays.equals(keyAt(i), key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int insertionSlot(byte[] key) {
+        int mask = capacity - 1;
+        int i = hash(key) & mask;
+        while (state(i) == USED) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash(int newCapacity) throws IOException {
+        List<byte[]> slots = new ArrayList<>();
+        for (int i = 0; i < capacity; i++) {
+            if (state(i) == USED) {
+                byte[] slot = new byte[SLOT_SIZE];
+                index.get(slotOffset(i), slot);
+                slots.add(slot);
+            }
+        }
+        close();
+        Path tmp = dir.resolve("index.bin.tmp");
+        Files.deleteIfExists(tmp);
+        create(tmp, newCapacity);
+        for (byte[] slot : slots) {
+            int i = insertionSlot(Arrays.copyOf(slot, KEY_SIZE));
+            index.put(slotOffset(i), slot);
+            used++;
+            totalBytes += index.getInt(slotOffset(i) + KEY_SIZE + 8);
+        }
+        writeHeader();
+        close();
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open(indexFile);
+    }
+
+    private void create(int newCapacity) throws IOException {
+        create(indexFile, newCapacity);
+    }
+
+    private void create(Path file, int newCapacity) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        capacity = newCapacity;
+        used = 0;
+        deleted = 0;
+        totalBytes = 0;
+        index = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        writeHeader();
+    }
+
+    private void open(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        capacity = index.getInt(4);
+        used = index.getInt(8);
+        deleted = index.getInt(12);
+        totalBytes = index.getLong(16);
+    }
+
+    private void writeHeader() {
+        index.putInt(0, MAGIC);
+        index.putInt(4, capacity);
+        index.putInt(8, used);
+        index.putInt(12, deleted);
+        index.putLong(16, totalBytes);
+    }
+
+    private int state(int slot) {
+        return index.getInt(slotOffset(slot) + KEY_SIZE + 12);
+    }
+
+    private byte[] keyAt(int slot) {
+        byte[] key = new byte[KEY_SIZE];
+        index.get(slotOffset(slot), key);
+        return key;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int hash(byte[] key) {
+        return (key[0] & 0xff) | (key[1] & 0xff) << 8 | (key[2] & 0xff) << 16 | (key[3] & 0x7f) << 24;
+    }
+
+    private Path blobPath(byte[] key) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : key) {
+            hex.append(String.format("%02x", b));
+        }
+        return dir.resolve("blobs").resolve(hex.substring(0, 2)).resolve(hex + ".gz");
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return used;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (index != null) {
+            index.force();
+            index = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package chatGPT;
+
+import com.alibaba.fastjson.JSON;
+import com.plexpt.chatgpt.ChatGPT;
+import com.plexpt.chatgpt.api.Api;
+import com.plexpt.chatgpt.entity.BaseResponse;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import retrofit2.Retrofit;
+import retrofit2.adapter.rxjava2.RxJava2CallAdapterFactory;
+import retrofit2.converter.jackson.JacksonConverterFactory;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived ChatGPT clients keyed by (apiKey, apiHost).
+ * <p>
+ * {@code ChatGPT.init()} creates a fresh OkHttpClient on every call, so every prompt paid for a new
+ * connection pool and TLS handshake. The clients built here are created once and all of them share
+ * one connection pool and dispatcher, so keep-alive connections are reused by every worker thread.
+ */
+public class ClientRegistry {
+    private static final long TIMEOUT_SECONDS = 300;
+    private static final OkHttpClient sharedClient = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(64, 5, TimeUnit.MINUTES))
+            .dispatcher(newDispatcher())
+            .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .build();
+    private static final Map<String, ChatGPT> clients = new ConcurrentHashMap<>();
+
+    public static ChatGPT get(String apiKey, String apiHost) {
+        return clients.computeIfAbsent(apiKey + "\n" + apiHost, k -> create(apiKey, apiHost));
+    }
+
+    private static ChatGPT create(String apiKey, String apiHost) {
+        // same interceptors as ChatGPT.init(), but derived from the shared client
+        OkHttpClient client = sharedClient.newBuilder()
+                .addInterceptor(chain -> {
+                    Request request = chain.request().newBuilder()
+                            .header("Authorization", "Bearer " + apiKey)
+                            .header("Content-Type", "application/json")
+                            .build();
+                    return chain.proceed(request);
+                })
+                .addInterceptor(chain -> {
+                    Response response = chain.proceed(chain.request());
+                    if (!response.isSuccessful()) {
+                        String body = response.body() == null ? "" : response.body().string();
+                        long retryAfter = retryAfterMillis(response);
+                        BaseResponse<?> baseResponse = null;
+                        try {
+                            baseResponse = JSON.parseObject(body, BaseResponse.class);
+                        } catch (RuntimeException ignored) {
+                            // not a JSON error body, e.g. a proxy error page
+                        }
+                        if (baseResponse != null && Objects.nonNull(baseResponse.getError())) {
+                            throw new QueryException(response.code(), baseResponse.getError().getType(), retryAfter, baseResponse.getError().getMessage());
+                        }
+                        throw new QueryException(response.code(), null, retryAfter, "HTTP " + response.code());
+                    }
+                    return response;
+                })
+                .build();
+        Api api = new Retrofit.Builder()
+                .baseUrl(apiHost)
+                .client(client)
+                .addCallAdapterFactory(RxJava2CallAdapterFactory.create())
+                .addConverterFactory(JacksonConverterFactory.create())
+                .build()
+                .create(Api.class);
+        return ChatGPT.builder()
+                .apiKey(apiKey)
+                .apiHost(apiHost)
+                .okHttpClient(client)
+                .apiClient(api)
+                .timeout(TIMEOUT_SECONDS)
+                .build();
+    }
+
+    /**
+     * @return the delay requested by the retry-after-ms or Retry-After header, -1 if there is none
+     */
+    static long retryAfterMillis(Response response) {
+        String millis = response.header("retry-after-ms");
+        if (millis != null) {
+            try {
+                return (long) Double.parseDouble(millis.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        String value = response.header("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return (long) (Double.parseDouble(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                long at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0, at - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return -1;
+            }
+        }
+    }
+
+    private static Dispatcher newDispatcher() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(256);
+        dispatcher.setMaxRequestsPerHost(64);
+        return dispatcher;
+    }
+}
@@ -0,0 +1,57 @@
+package chatGPT;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One account at one provider: where to send requests, with which key and model, and how large a
+ * share of the traffic it should get. Its health is kept by the {@link EndpointPool} it belongs to.
+ */
+public class Endpoint {
+    public final String apiUrl;
+    public final String apiKey;
+    public final String model;
+    public final int weight;
+    /**
+     * Requests/tokens-per-minute limiter of this account, or null to use the limiter of queryGPT4.
+     */
+    public final RateLimiter rateLimiter;
+
+    final AtomicInteger outstanding = new AtomicInteger();
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    int consecutiveFailures;
+    long unhealthyUntil;
+
+    public Endpoint(String apiUrl, String apiKey, String model, int weight, RateLimiter rateLimiter) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        this.apiUrl = apiUrl;
+        this.apiKey = apiKey;
+        this.model = model;
+        this.weight = weight;
+        this.rateLimiter = rateLimiter;
+    }
+
+    public Endpoint(String apiUrl, String apiKey) {
+        this(apiUrl, apiKey, queryGPT4.MODEL, 1, null);
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return apiUrl + " (" + model + ")";
+    }
+}
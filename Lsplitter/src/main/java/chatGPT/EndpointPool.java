@@ -0,0 +1,190 @@
+package chatGPT;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Spreads LLM requests over several endpoints.
+ * <p>
+ * A request goes to the healthy endpoint with the fewest outstanding requests per unit of weight.
+ * An endpoint that fails is taken out of rotation for a while: as long as its Retry-After hint after
+ * a 429, with exponential backoff after network and server errors, and for {@code quarantineMillis}
+ * when its key is rejected or out of quota. queryGPT4 then fails over to the next endpoint.
+ */
+public class EndpointPool {
+    private static final ConcurrentHashMap<String, EndpointPool> singles = new ConcurrentHashMap<>();
+
+    public final long baseCooldownMillis;
+    public final long maxCooldownMillis;
+    public final long quarantineMillis;
+    private final List<Endpoint> endpoints;
+    private final String key;
+    private final List<String> models;
+
+    public EndpointPool(List<Endpoint> endpoints, long baseCooldownMillis, long maxCooldownMillis, long quarantineMillis) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("no endpoints");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.baseCooldownMillis = baseCooldownMillis;
+        this.maxCooldownMillis = maxCooldownMillis;
+        this.quarantineMillis = quarantineMillis;
+        StringBuilder key = new StringBuilder();
+        for (Endpoint endpoint : endpoints) {
+            key.append(endpoint.apiUrl).append('\u0000').append(endpoint.model).append('\u0000');
+        }
+        this.key = key.toString();
+        List<String> models = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (!models.contains(endpoint.model)) {
+                models.add(endpoint.model);
+            }
+        }
+        this.models = Collections.unmodifiableList(models);
+    }
+
+    public EndpointPool(List<Endpoint> endpoints) {
+        this(endpoints, 1000, 60_000, 10 * 60_000);
+    }
+
+    /**
+     * @return the pool of a single endpoint, shared by all callers with the same key and URL
+     */
+    public static EndpointPool single(String apiKey, String apiUrl) {
+        return singles.computeIfAbsent(apiKey + "\n" + apiUrl, k -> new EndpointPool(List.of(new Endpoint(apiUrl, apiKey))));
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return the distinct models of the endpoints, in the order of the endpoints; a request may be answered by any of them
+     */
+    public List<String> getModels() {
+        return models;
+    }
+
+    /**
+     * Identifies the endpoints and models of the pool, but not the keys, so that identical prompts
+     * to the same pool can share an answer.
+     */
+    String key() {
+        return key;
+    }
+
+    /**
+     * Picks the healthy endpoint with the lowest (outstanding + 1) / weight that is not excluded.
+     * When no endpoint has been tried yet and all are cooling down, the one that recovers first is taken.
+     *
+     * @param tried endpoints already tried for this request
+     * @return the endpoint, with one more outstanding request, or null if every healthy endpoint was tried
+     */
+    synchronized Endpoint acquire(Set<Endpoint> tried) {
+        long now = System.currentTimeMillis();
+        Endpoint best = null;
+        double bestLoad = Double.MAX_VALUE;
+        Endpoint recovering = null;
+        for (Endpoint endpoint : endpoints) {
+            if (tried.contains(endpoint)) {
+                continue;
+            }
+            if (endpoint.unhealthyUntil > now) {
+                if (recovering == null || endpoint.unhealthyUntil < recovering.unhealthyUntil) {
+                    recovering = endpoint;
+                }
+                continue;
+            }
+            double load = (endpoint.outstanding.get() + 1.0) / endpoint.weight;
+            if (load < bestLoad) {
+                best = endpoint;
+                bestLoad = load;
+            }
+        }
+        if (best == null && tried.isEmpty()) {
+            best = recovering;
+        }
+        if (best != null) {
+            best.outstanding.incrementAndGet();
+            best.requests.incrementAndGet();
+        }
+        return best;
+    }
+
+    /**
+     * Ends a request on {@code endpoint} and updates its health.
+     *
+     * @param error null on success
+     * @return true if another endpoint may succeed where this one failed
+     */
+    synchronized boolean release(Endpoint endpoint, Throwable error) {
+        endpoint.outstanding.decrementAndGet();
+        if (error == null) {
+            endpoint.consecutiveFailures = 0;
+            endpoint.unhealthyUntil = 0;
+            return false;
+        }
+        if (isCancellation(error)) {
+            return false;
+        }
+        QueryException status = statusOf(error);
+        RetryPolicy.ErrorKind kind = RetryPolicy.classify(error);
+        long cooldown;
+        if (kind == RetryPolicy.ErrorKind.FATAL) {
+            if (status == null || !isAccountError(status)) {
+                // the request itself is bad, another endpoint will reject it too
+                return false;
+            }
+            cooldown = quarantineMillis;
+        } else if (kind == RetryPolicy.ErrorKind.RATE_LIMIT && status != null && status.retryAfterMillis >= 0) {
+            cooldown = Math.max(status.retryAfterMillis, baseCooldownMillis);
+        } else {
+            long exp = baseCooldownMillis << Math.min(endpoint.consecutiveFailures, 30);
+            cooldown = exp <= 0 ? maxCooldownMillis : Math.min(exp, maxCooldownMillis);
+        }
+        endpoint.failures.incrementAndGet();
+        endpoint.consecutiveFailures++;
+        endpoint.unhealthyUntil = System.currentTimeMillis() + cooldown;
+        return true;
+    }
+
+    private static boolean isAccountError(QueryException e) {
+        return e.status == 401 || e.status == 403 || e.status == 404 || "insufficient_quota".equals(e.type);
+    }
+
+    private static boolean isCancellation(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof CancellationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static QueryException statusOf(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof QueryException && ((QueryException) t).status != 0) {
+                return (QueryException) t;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long now = System.currentTimeMillis();
+        StringBuilder res = new StringBuilder();
+        for (Endpoint endpoint : endpoints) {
+            if (res.length() > 0) {
+                res.append("; ");
+            }
+            res.append(endpoint).append(": requests=").append(endpoint.getRequests()).append(", failures=").append(endpoint.getFailures())
+                    .append(endpoint.unhealthyUntil > now ? ", cooling down" : "");
+        }
+        return res.toString();
+    }
+}
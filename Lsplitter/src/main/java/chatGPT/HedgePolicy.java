@@ -0,0 +1,85 @@
+package chatGPT;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When to send a duplicate of a slow request.
+ * <p>
+ * A request that has not answered within the given percentile of recent latencies is sent a second
+ * time, and the first valid answer wins. Hedging starts once {@code minSamples} latencies are known
+ * and stops when {@code maxHedges} duplicates have been sent, which bounds the extra tokens a run may
+ * spend; create a new policy to start a new run.
+ */
+public class HedgePolicy {
+    public final double percentile;
+    public final int minSamples;
+    public final long maxHedges;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong won = new AtomicLong();
+
+    /**
+     * @param percentile latency percentile after which a duplicate is sent, e.g. 95
+     * @param minSamples number of latencies needed before the percentile is trusted
+     * @param maxHedges  maximum number of duplicates sent with this policy
+     */
+    public HedgePolicy(double percentile, int minSamples, long maxHedges) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be in (0, 100]");
+        }
+        this.percentile = percentile;
+        this.minSamples = minSamples;
+        this.maxHedges = maxHedges;
+    }
+
+    /**
+     * @return how long to wait for an answer before hedging, or -1 if there are too few samples
+     */
+    long delayMillis(LatencyTracker latencies) {
+        requests.incrementAndGet();
+        return latencies.size() < Math.max(1, minSamples) ? -1 : latencies.percentile(percentile);
+    }
+
+    /**
+     * Takes one duplicate from the budget.
+     * @return false when the budget is spent
+     */
+    boolean tryHedge() {
+        while (true) {
+            long current = hedged.get();
+            if (current >= maxHedges) {
+                return false;
+            }
+            if (hedged.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void recordWin() {
+        won.incrementAndGet();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getHedged() {
+        return hedged.get();
+    }
+
+    /**
+     * @return the number of duplicates that answered before the request they duplicated
+     */
+    public long getWon() {
+        return won.get();
+    }
+
+    @Override
+    public String toString() {
+        long total = getRequests();
+        return "requests=" + total + ", hedged=" + getHedged() + String.format(" (%.1f%%)", total == 0 ? 0.0 : 100.0 * getHedged() / total)
+                + ", won=" + getWon() + ", budgetLeft=" + Math.max(0, maxHedges - getHedged());
+    }
+}
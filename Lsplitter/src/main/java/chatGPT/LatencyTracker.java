@@ -0,0 +1,57 @@
+package chatGPT;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of the most recent successful requests, for percentiles that follow the provider's
+ * current speed rather than its history.
+ */
+public class LatencyTracker {
+    private final long[] window;
+    private int next;
+    private int size;
+    private long total;
+
+    /**
+     * @param capacity number of most recent latencies kept
+     */
+    public LatencyTracker(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.window = new long[capacity];
+    }
+
+    public synchronized void record(long millis) {
+        window[next] = millis;
+        next = (next + 1) % window.length;
+        size = Math.min(size + 1, window.length);
+        total++;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency below which {@code percentile} percent of the recent requests answered, or -1 without samples
+     */
+    public synchronized long percentile(double percentile) {
+        if (size == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(window, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+
+    /**
+     * @return the number of latencies in the window
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "requests=" + total + ", p50=" + percentile(50) + " ms, p90=" + percentile(90) + " ms, p99=" + percentile(99) + " ms";
+    }
+}
@@ -0,0 +1,27 @@
+package chatGPT;
+
+import com.plexpt.chatgpt.exception.ChatException;
+
+/**
+ * A failed chat-completion request. Keeps the HTTP status, the error type reported by the provider
+ * and the Retry-After hint so that {@link RetryPolicy} can decide how to react.
+ */
+public class QueryException extends ChatException {
+    private static final long serialVersionUID = 1L;
+
+    public final int status;
+    public final String type;
+    public final long retryAfterMillis;
+
+    public QueryException(int status, String type, long retryAfterMillis, String message) {
+        super(message);
+        this.status = status;
+        this.type = type;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public QueryException(String message, Throwable cause) {
+        this(0, null, -1, message);
+        initCause(cause);
+    }
+}
@@ -0,0 +1,127 @@
+package chatGPT;
+
+/**
+ * Client-side limiter for the provider's requests-per-minute and tokens-per-minute quotas.
+ * <p>
+ * Two token buckets refill continuously at the per-minute rates. A request takes one request token
+ * and reserves its prompt tokens plus the completion tokens it is expected to use, estimated from the
+ * completion-to-prompt ratio of recent answers ({@link #estimateCompletion}); once the response reports
+ * the real usage, {@link #settle} corrects the reservation. One limiter is shared by all worker threads,
+ * so together they stay just under the quota instead of running into 429s.
+ */
+public class RateLimiter {
+    private static final long NANOS_PER_MINUTE = 60_000_000_000L;
+    // weight of the last answer in the completion-to-prompt ratio
+    private static final double RATIO_SMOOTHING = 0.2;
+
+    public final int requestsPerMinute;
+    public final int tokensPerMinute;
+    private double requests;
+    private double tokens;
+    private long lastRefill;
+    // a decomposition answer is about as long as the method in its prompt
+    private double completionRatio = 1;
+    private long throttled;
+    private long waitedMillis;
+
+    public RateLimiter(int requestsPerMinute, int tokensPerMinute) {
+        if (requestsPerMinute <= 0 || tokensPerMinute <= 0) {
+            throw new IllegalArgumentException("limits must be positive");
+        }
+        this.requestsPerMinute = requestsPerMinute;
+        this.tokensPerMinute = tokensPerMinute;
+        this.requests = requestsPerMinute;
+        this.tokens = tokensPerMinute;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @return a limiter for the quotas in the system properties {@code llm.requestsPerMinute} and
+     * {@code llm.tokensPerMinute}, or null when neither is set; a quota that is not set is not limited
+     */
+    public static RateLimiter fromSystemProperties() {
+        Integer requests = Integer.getInteger("llm.requestsPerMinute");
+        Integer tokens = Integer.getInteger("llm.tokensPerMinute");
+        if (requests == null && tokens == null) {
+            return null;
+        }
+        return new RateLimiter(requests != null ? requests : Integer.MAX_VALUE, tokens != null ? tokens : Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the completion tokens to reserve for a prompt of {@code promptTokens}, at most {@code maxTokens}
+     */
+    public synchronized long estimateCompletion(long promptTokens, long maxTokens) {
+        return Math.min(maxTokens, (long) Math.ceil(promptTokens * completionRatio));
+    }
+
+    /**
+     * Blocks until one request and {@code estimatedTokens} tokens are available, and takes them.
+     * A single request larger than the whole per-minute budget waits for a full bucket.
+     *
+     * @return the number of tokens reserved, to be passed to {@link #settle}
+     */
+    public synchronized long acquire(long estimatedTokens) throws InterruptedException {
+        long reserved = Math.min(estimatedTokens, tokensPerMinute);
+        boolean waited = false;
+        long start = System.nanoTime();
+        while (true) {
+            refill();
+            if (requests >= 1 && tokens >= reserved) {
+                requests -= 1;
+                tokens -= reserved;
+                if (waited) {
+                    throttled++;
+                    waitedMillis += (System.nanoTime() - start) / 1_000_000;
+                }
+                return reserved;
+            }
+            double missingRequests = Math.max(0, 1 - requests);
+            double missingTokens = Math.max(0, reserved - tokens);
+            double waitMinutes = Math.max(missingRequests / requestsPerMinute, missingTokens / tokensPerMinute);
+            waited = true;
+            wait(Math.max(1, (long) Math.ceil(waitMinutes * 60_000)));
+        }
+    }
+
+    /**
+     * Corrects a reservation with the tokens the request really used. Over-use is taken from the
+     * bucket and delays later requests. A request that failed should still count its prompt, which the
+     * provider may have billed.
+     */
+    public synchronized void settle(long reserved, long used) {
+        refill();
+        tokens = Math.min(tokensPerMinute, tokens + reserved - used);
+        notifyAll();
+    }
+
+    /**
+     * Updates the completion-to-prompt ratio with an answer, for the next estimates.
+     */
+    public synchronized void recordAnswer(long promptTokens, long completionTokens) {
+        if (promptTokens > 0) {
+            completionRatio += RATIO_SMOOTHING * ((double) completionTokens / promptTokens - completionRatio);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double minutes = (double) (now - lastRefill) / NANOS_PER_MINUTE;
+        lastRefill = now;
+        requests = Math.min(requestsPerMinute, requests + minutes * requestsPerMinute);
+        tokens = Math.min(tokensPerMinute, tokens + minutes * tokensPerMinute);
+    }
+
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    public synchronized long getWaitedMillis() {
+        return waitedMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "throttled=" + throttled + ", waitedMillis=" + waitedMillis;
+    }
+}
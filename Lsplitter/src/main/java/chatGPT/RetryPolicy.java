@@ -0,0 +1,166 @@
+package chatGPT;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded retry with exponential backoff and jitter for LLM requests.
+ * <p>
+ * Rate-limit errors wait at least as long as the provider's Retry-After hint, transient errors
+ * (network failures, 408/409/5xx) back off exponentially, fatal errors (other 4xx, exhausted quota)
+ * are rethrown at once. A request gives up after {@code maxAttempts} attempts or when the next
+ * sleep would pass {@code deadlineMillis}.
+ */
+public class RetryPolicy {
+    public enum ErrorKind { RATE_LIMIT, TRANSIENT, FATAL }
+
+    public final int maxAttempts;
+    public final long baseDelayMillis;
+    public final long maxDelayMillis;
+    public final long deadlineMillis;
+    public final double jitter;
+
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong sleptMillis = new AtomicLong();
+
+    /**
+     * @param maxAttempts     maximum number of attempts, including the first one
+     * @param baseDelayMillis delay before the first retry, doubled on every further retry
+     * @param maxDelayMillis  upper bound of a single backoff delay
+     * @param deadlineMillis  upper bound of the total time spent on one request
+     * @param jitter          fraction of each delay that is randomised, between 0 and 1
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long deadlineMillis, double jitter) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.deadlineMillis = deadlineMillis;
+        this.jitter = Math.max(0, Math.min(1, jitter));
+    }
+
+    public static RetryPolicy defaultPolicy() {
+        return new RetryPolicy(8, 1000, 60_000, 10 * 60_000, 0.5);
+    }
+
+    public <T> T execute(Callable<T> call) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        for (int attempt = 1; ; attempt++) {
+            attempts.incrementAndGet();
+            try {
+                return call.call();
+            } catch (InterruptedException | CancellationException e) {
+                throw e;
+            } catch (Exception e) {
+                ErrorKind kind = classify(e);
+                if (kind == ErrorKind.FATAL) {
+                    failures.incrementAndGet();
+                    throw asQueryException(e, "Query failed");
+                }
+                if (attempt >= maxAttempts) {
+                    failures.incrementAndGet();
+                    throw asQueryException(e, "Query failed after " + attempt + " attempts");
+                }
+                long delay = backoff(attempt, kind == ErrorKind.RATE_LIMIT ? retryAfterMillis(e) : -1);
+                if (System.currentTimeMillis() - start + delay > deadlineMillis) {
+                    failures.incrementAndGet();
+                    throw asQueryException(e, "Query deadline of " + deadlineMillis + " ms exceeded");
+                }
+                if (kind == ErrorKind.RATE_LIMIT) {
+                    rateLimited.incrementAndGet();
+                }
+                retries.incrementAndGet();
+                sleptMillis.addAndGet(delay);
+                System.err.println("Query failed (" + kind + ": " + e.getMessage() + "), retry " + attempt + " in " + delay + " ms");
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Exponential delay for the given retry, randomised by {@code jitter}. A Retry-After hint is a
+     * lower bound; the jittered backoff is added on top so that throttled workers do not wake up together.
+     */
+    long backoff(int attempt, long retryAfterMillis) {
+        long exp = baseDelayMillis << Math.min(attempt - 1, 30);
+        if (exp <= 0 || exp > maxDelayMillis) {
+            exp = maxDelayMillis;
+        }
+        long delay = exp - (long) (exp * jitter * ThreadLocalRandom.current().nextDouble());
+        if (retryAfterMillis >= 0) {
+            delay = Math.min(retryAfterMillis, maxDelayMillis) + delay / 4;
+        }
+        return delay;
+    }
+
+    public static ErrorKind classify(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof QueryException && ((QueryException) t).status != 0) {
+                QueryException qe = (QueryException) t;
+                if (qe.status == 429) {
+                    // an exhausted quota is reported as 429 too, but waiting will not help
+                    return "insufficient_quota".equals(qe.type) ? ErrorKind.FATAL : ErrorKind.RATE_LIMIT;
+                }
+                if (qe.status == 408 || qe.status == 409 || qe.status >= 500) {
+                    return ErrorKind.TRANSIENT;
+                }
+                return ErrorKind.FATAL;
+            }
+            if (t instanceof IOException) {
+                return ErrorKind.TRANSIENT;
+            }
+        }
+        // empty replies, malformed JSON, ... were always retried before
+        return ErrorKind.TRANSIENT;
+    }
+
+    private static long retryAfterMillis(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof QueryException) {
+                return ((QueryException) t).retryAfterMillis;
+            }
+        }
+        return -1;
+    }
+
+    private static QueryException asQueryException(Exception e, String message) {
+        if (e instanceof QueryException && e.getCause() == null) {
+            return (QueryException) e;
+        }
+        return new QueryException(message + ": " + e.getMessage(), e);
+    }
+
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getSleptMillis() {
+        return sleptMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "attempts=" + getAttempts() + ", retries=" + getRetries() + ", rateLimited=" + getRateLimited()
+                + ", failures=" + getFailures() + ", sleptMillis=" + getSleptMillis();
+    }
+}
@@ -0,0 +1,91 @@
+package chatGPT;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls with the same key into one: while a call is in flight, callers with an
+ * equal key wait for its result instead of starting their own. Nothing is kept after the call completes.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Runs {@code call} on the current thread, or waits for the call already in flight for {@code key}.
+     */
+    public V execute(K key, Callable<V> call) throws InterruptedException {
+        calls.incrementAndGet();
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            shared.incrementAndGet();
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new CompletionException(e.getCause());
+            }
+        }
+        try {
+            V value = call.call();
+            mine.complete(value);
+            return value;
+        } catch (InterruptedException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } catch (Exception e) {
+            mine.completeExceptionally(e);
+            throw new CompletionException(e);
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Starts {@code call}, or joins the call already in flight for {@code key}. Every caller gets its
+     * own copy of the future, so cancelling it does not affect the others.
+     */
+    public CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> call) {
+        calls.incrementAndGet();
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            shared.incrementAndGet();
+            return existing.copy();
+        }
+        try {
+            call.get().whenComplete((value, e) -> {
+                inFlight.remove(key, mine);
+                if (e != null) {
+                    mine.completeExceptionally(e);
+                } else {
+                    mine.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+        }
+        return mine.copy();
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return the number of calls that were answered by a call already in flight
+     */
+    public long getShared() {
+        return shared.get();
+    }
+}
@@ -0,0 +1,30 @@
+package chatGPT;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+import com.knuddels.jtokkit.api.EncodingType;
+
+/**
+ * Token counting with jtokkit, using the encoding of the model that is queried.
+ */
+public class Tokens {
+    // role markers and separators the chat format adds around a single user message
+    private static final int MESSAGE_OVERHEAD = 7;
+    private static final EncodingRegistry registry = Encodings.newLazyEncodingRegistry();
+
+    public static int count(String model, String text) {
+        return encoding(model).countTokens(text);
+    }
+
+    /**
+     * @return the number of prompt tokens of a chat request made of the single user message {@code question}
+     */
+    public static int countPrompt(String model, String question) {
+        return count(model, question) + MESSAGE_OVERHEAD;
+    }
+
+    private static Encoding encoding(String model) {
+        return registry.getEncodingForModel(model).orElseGet(() -> registry.getEncoding(EncodingType.CL100K_BASE));
+    }
+}
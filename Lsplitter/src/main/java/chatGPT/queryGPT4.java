@@ -1,30 +1,506 @@
 package chatGPT;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.plexpt.chatgpt.ChatGPT;
 import com.plexpt.chatgpt.entity.chat.ChatCompletion;
 import com.plexpt.chatgpt.entity.chat.ChatCompletionResponse;
 import com.plexpt.chatgpt.entity.chat.Message;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import util.CodeFenceTracker;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 public class queryGPT4 {
+    public static final String MODEL = ChatCompletion.Model.GPT_4.getName();
+    public static final int MAX_TOKENS = 4096;
+    public static final double TEMPERATURE = 0.1;
+    private static volatile RetryPolicy retryPolicy = RetryPolicy.defaultPolicy();
+    private static volatile RateLimiter rateLimiter;
+    private static volatile Semaphore inFlight = new Semaphore(16);
+    private static final ExecutorService executor = newExecutor();
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static volatile boolean streaming;
+    private static final SingleFlight<String, Answer> singleFlight = new SingleFlight<>();
+    private static final LatencyTracker latencies = new LatencyTracker(1000);
+    private static volatile HedgePolicy hedgePolicy;
+
     public static String query(String apiKey, String apiUrl, String question) throws InterruptedException {
-        ChatGPT chatGPT = ChatGPT.builder()
-                .apiKey(apiKey)
-                .apiHost(apiUrl)
-                .build()
-                .init();
-        Message message = Message.of(question);
-        ChatCompletion chatCompletion = ChatCompletion.builder().model(ChatCompletion.Model.GPT_4.getName()).
-                messages(Arrays.asList(message)).maxTokens(4096).temperature(0.1).build();
+        return query(apiKey, apiUrl, question, 0);
+    }
+
+    /**
+     * @param codeBlocks number of code blocks the question asks for; when streaming, the answer is cut
+     *                   after the last one. 0 reads the whole answer, e.g. when the code may come in
+     *                   several blocks
+     */
+    public static String query(String apiKey, String apiUrl, String question, int codeBlocks) throws InterruptedException {
+        return query(EndpointPool.single(apiKey, apiUrl), question, codeBlocks);
+    }
+
+    public static String query(EndpointPool pool, String question, int codeBlocks) throws InterruptedException {
+        return ask(pool, question, codeBlocks).text;
+    }
+
+    /**
+     * Sends the question to one of the endpoints of the pool, failing over to the others.
+     *
+     * @return the answer and the model of the endpoint that gave it
+     */
+    public static Answer ask(EndpointPool pool, String question, int codeBlocks) throws InterruptedException {
+        return ask(pool, question, codeBlocks, null);
+    }
+
+    /**
+     * @param onCodeLine receives every line of code as soon as it is received, so that the caller can start
+     *                   on a partial answer; may be null. The lines come from one try at a time: when a try
+     *                   fails, or loses to a hedged duplicate, the lines of the try that answers follow from
+     *                   its first line, so the returned answer is the final one. Without streaming, the lines
+     *                   come when the whole answer is there. A caller that shares an identical request in
+     *                   flight gets no lines.
+     */
+    public static Answer ask(EndpointPool pool, String question, int codeBlocks, Consumer<String> onCodeLine) throws InterruptedException {
+        return singleFlight.execute(flightKey(pool, question, codeBlocks), () -> send(pool, question, codeBlocks, Lines.of(onCodeLine)));
+    }
+
+    private static Answer send(EndpointPool pool, String question, int codeBlocks, Lines lines) throws InterruptedException {
+        HedgePolicy hedge = hedgePolicy;
+        if (hedge == null) {
+            return attempt(pool, question, codeBlocks, new Attempt(lines));
+        }
+        Attempt first = new Attempt(lines);
+        Attempt second = new Attempt(lines);
+        try {
+            CompletableFuture<Answer> primary = runAsync(() -> attempt(pool, question, codeBlocks, first));
+            long delay = hedge.delayMillis(latencies);
+            if (delay >= 0) {
+                try {
+                    // the latencies leave out the wait for the rate limiter and the in-flight permits
+                    CompletableFuture.anyOf(first.started, primary).get();
+                    return primary.get(delay, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // slower than usual, hedge below
+                } catch (ExecutionException e) {
+                    throw unwrap(e);
+                }
+            }
+            if (delay < 0 || !hedge.tryHedge()) {
+                return join(primary);
+            }
+            CompletableFuture<Answer> backup = runAsync(() -> attempt(pool, question, codeBlocks, second));
+            CompletableFuture<Answer> winner = new CompletableFuture<>();
+            primary.whenComplete((answer, e) -> {
+                if (e == null) {
+                    winner.complete(answer);
+                } else {
+                    backup.whenComplete((ignored, e2) -> winner.completeExceptionally(e));
+                }
+            });
+            backup.whenComplete((answer, e) -> {
+                if (e == null) {
+                    if (winner.complete(answer)) {
+                        hedge.recordWin();
+                    }
+                } else {
+                    primary.whenComplete((ignored, e2) -> winner.completeExceptionally(e2 != null ? e2 : e));
+                }
+            });
+            return join(winner);
+        } finally {
+            first.cancel();
+            second.cancel();
+        }
+    }
+
+    /**
+     * One request with its retries. Every try goes to the least loaded healthy endpoint; when it
+     * fails in a way another endpoint may not, the other healthy endpoints are tried at once before
+     * the retry policy backs off. A cancelled attempt stops at its next read or retry.
+     */
+    private static Answer attempt(EndpointPool pool, String question, int codeBlocks, Attempt attempt) throws InterruptedException {
+        return retryPolicy.execute(() -> {
+            Set<Endpoint> tried = new HashSet<>();
+            Exception last = null;
+            while (true) {
+                if (attempt.cancelled) {
+                    throw new CancellationException();
+                }
+                Endpoint endpoint = pool.acquire(tried);
+                if (endpoint == null) {
+                    throw last;
+                }
+                tried.add(endpoint);
+                try {
+                    String content = call(endpoint, question, codeBlocks, attempt);
+                    pool.release(endpoint, null);
+                    return new Answer(content, endpoint.model);
+                } catch (Exception e) {
+                    if (!pool.release(endpoint, e) || attempt.cancelled) {
+                        throw e;
+                    }
+                    last = e;
+                    System.err.println("Query to " + endpoint + " failed (" + e.getMessage() + "), trying another endpoint");
+                }
+            }
+        });
+    }
+
+    private static String call(Endpoint endpoint, String question, int codeBlocks, Attempt attempt) throws Exception {
+        if (attempt.lines == null) {
+            return call(endpoint, question, codeBlocks, attempt, null);
+        }
+        Lines.Try lines = attempt.lines.newTry();
+        boolean answered = false;
+        try {
+            String content = call(endpoint, question, codeBlocks, attempt, lines);
+            answered = true;
+            return content;
+        } finally {
+            lines.end(answered);
+        }
+    }
+
+    private static String call(Endpoint endpoint, String question, int codeBlocks, Attempt attempt, Consumer<String> onCodeLine) throws Exception {
+        ChatGPT chatGPT = ClientRegistry.get(endpoint.apiKey, endpoint.apiUrl);
+        ChatCompletion chatCompletion = ChatCompletion.builder().model(endpoint.model).
+                messages(Arrays.asList(Message.of(question))).maxTokens(MAX_TOKENS).temperature(TEMPERATURE).stream(streaming).build();
+        int promptTokens = Tokens.countPrompt(endpoint.model, question);
+        RateLimiter limiter = endpoint.rateLimiter != null ? endpoint.rateLimiter : rateLimiter;
+        long reserved = limiter == null ? 0 : limiter.acquire(promptTokens + limiter.estimateCompletion(promptTokens, MAX_TOKENS));
+        // until there is an answer only the prompt counts: a failed request may have been billed for it
+        long used = promptTokens;
+        Semaphore permits = inFlight;
+        permits.acquire();
+        attempt.started.complete(null);
+        long begin = System.nanoTime();
+        try {
+            String content;
+            if (chatCompletion.isStream()) {
+                try {
+                    content = stream(chatGPT, chatCompletion, codeBlocks, onCodeLine, attempt);
+                } catch (IOException e) {
+                    if (attempt.cancelled) {
+                        throw new CancellationException();
+                    }
+                    throw e;
+                }
+                used = promptTokens + Tokens.count(endpoint.model, content);
+            } else {
+                ChatCompletionResponse response = chatGPT.chatCompletion(chatCompletion);
+                content = response.getChoices().get(0).getMessage().getContent();
+                used = response.getUsage() != null && response.getUsage().getTotalTokens() > 0
+                        ? response.getUsage().getTotalTokens()
+                        : promptTokens + Tokens.count(endpoint.model, content);
+                if (onCodeLine != null) {
+                    CodeFenceTracker tracker = new CodeFenceTracker(0, onCodeLine);
+                    tracker.feed(content);
+                    tracker.finish();
+                }
+            }
+            if (limiter != null) {
+                limiter.recordAnswer(promptTokens, used - promptTokens);
+            }
+            latencies.record((System.nanoTime() - begin) / 1_000_000);
+            return content;
+        } finally {
+            permits.release();
+            if (limiter != null) {
+                limiter.settle(reserved, used);
+            }
+        }
+    }
+
+    /**
+     * A request that may be abandoned because a hedged duplicate answered first. Only streamed
+     * requests can be cut; a plain request runs to its end and its answer is dropped.
+     */
+    private static class Attempt {
+        final Lines lines;
+        /** Completed once the first try holds its permits; the hedge delay counts from here. */
+        final CompletableFuture<Void> started = new CompletableFuture<>();
+        volatile boolean cancelled;
+        volatile Call call;
+
+        Attempt(Lines lines) {
+            this.lines = lines;
+        }
+
+        void cancel() {
+            cancelled = true;
+            Call current = call;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+    }
+
+    /**
+     * The caller's line consumer, shared by the tries of a request. The first try to give a line owns it
+     * until the try fails; the lines of the other tries are kept meanwhile. A try that takes the consumer
+     * over, because the owner failed or because it answered first, gives all its lines from the first.
+     */
+    private static class Lines {
+        private final Consumer<String> consumer;
+        private Try owner;
+
+        private Lines(Consumer<String> consumer) {
+            this.consumer = consumer;
+        }
+
+        static Lines of(Consumer<String> consumer) {
+            return consumer == null ? null : new Lines(consumer);
+        }
+
+        Try newTry() {
+            return new Try();
+        }
+
+        class Try implements Consumer<String> {
+            private final List<String> received = new ArrayList<>();
+
+            @Override
+            public void accept(String line) {
+                synchronized (Lines.this) {
+                    received.add(line);
+                    if (owner == this) {
+                        consumer.accept(line);
+                    } else if (owner == null) {
+                        takeOver();
+                    }
+                }
+            }
+
+            void end(boolean answered) {
+                synchronized (Lines.this) {
+                    if (answered && owner != this) {
+                        takeOver();
+                    } else if (!answered && owner == this) {
+                        owner = null;
+                    }
+                }
+            }
+
+            private void takeOver() {
+                owner = this;
+                received.forEach(consumer);
+            }
+        }
+    }
+
+    private interface Task<T> {
+        T run() throws InterruptedException;
+    }
+
+    private static <T> CompletableFuture<T> runAsync(Task<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) throws InterruptedException {
+        if (e.getCause() instanceof InterruptedException) {
+            throw (InterruptedException) e.getCause();
+        }
+        if (e.getCause() instanceof RuntimeException) {
+            return (RuntimeException) e.getCause();
+        }
+        return new CompletionException(e.getCause());
+    }
+
+    /**
+     * Reads the answer as server-sent events and stops reading once the expected code blocks, if any, are
+     * complete. Closing the response early drops the connection instead of returning it to the pool,
+     * but the provider stops generating, so the trailing prose is neither waited for nor paid for.
+     */
+    private static String stream(ChatGPT chatGPT, ChatCompletion chatCompletion, int codeBlocks, Consumer<String> onCodeLine, Attempt attempt) throws IOException {
+        Request request = new Request.Builder()
+                .url(HttpUrl.get(chatGPT.getApiHost()).resolve("v1/chat/completions"))
+                .post(RequestBody.create(JSON, mapper.writeValueAsString(chatCompletion)))
+                .header("Accept", "text/event-stream")
+                .build();
+        CodeFenceTracker tracker = new CodeFenceTracker(codeBlocks, onCodeLine);
+        Call call = chatGPT.getOkHttpClient().newCall(request);
+        attempt.call = call;
+        if (attempt.cancelled) {
+            call.cancel();
+        }
+        try (Response response = call.execute()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(response.body().byteStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                String data = line.substring(5).trim();
+                if (data.equals("[DONE]")) {
+                    break;
+                }
+                JsonNode content = mapper.readTree(data).path("choices").path(0).path("delta").path("content");
+                if (content.isTextual() && tracker.feed(content.asText())) {
+                    break;
+                }
+            }
+        }
+        tracker.finish();
+        if (tracker.text().isEmpty()) {
+            throw new IOException("empty streamed answer");
+        }
+        return tracker.text();
+    }
+
+    /**
+     * Non-blocking variant of {@link #query}. The request runs on a virtual thread when the JVM has
+     * them (Java 21+), otherwise on a cached daemon pool; either way at most {@link #setMaxInFlight}
+     * requests are on the wire at once.
+     */
+    public static CompletableFuture<String> queryAsync(String apiKey, String apiUrl, String question) {
+        return queryAsync(apiKey, apiUrl, question, 0);
+    }
+
+    /**
+     * @param codeBlocks number of code blocks the question asks for, see {@link #query(String, String, String, int)}
+     */
+    public static CompletableFuture<String> queryAsync(String apiKey, String apiUrl, String question, int codeBlocks) {
+        return queryAsync(EndpointPool.single(apiKey, apiUrl), question, codeBlocks);
+    }
+
+    public static CompletableFuture<String> queryAsync(EndpointPool pool, String question, int codeBlocks) {
+        return askAsync(pool, question, codeBlocks).thenApply(answer -> answer.text);
+    }
+
+    /**
+     * Non-blocking variant of {@link #ask}.
+     */
+    public static CompletableFuture<Answer> askAsync(EndpointPool pool, String question, int codeBlocks) {
+        return askAsync(pool, question, codeBlocks, null);
+    }
+
+    /**
+     * Non-blocking variant of {@link #ask(EndpointPool, String, int, Consumer)}; the lines are given on the
+     * thread of the request.
+     */
+    public static CompletableFuture<Answer> askAsync(EndpointPool pool, String question, int codeBlocks, Consumer<String> onCodeLine) {
+        return singleFlight.run(flightKey(pool, question, codeBlocks), () -> runAsync(() -> send(pool, question, codeBlocks, Lines.of(onCodeLine))));
+    }
+
+    /**
+     * Identical prompts sent to the same endpoints while one of them is in flight share its answer,
+     * whatever API keys they use. The key holds the URL and model of every endpoint of the pool, so a
+     * request never shares the answer of a model it could not have been sent to.
+     */
+    private static String flightKey(EndpointPool pool, String question, int codeBlocks) {
+        return pool.key() + codeBlocks + "\u0000" + question;
+    }
+
+    /**
+     * @return the de-duplication counters: all calls, and calls that shared an identical call in flight
+     */
+    public static SingleFlight<String, Answer> getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * Bounds the number of requests in flight across all threads. Requests already waiting keep the old bound.
+     */
+    public static void setMaxInFlight(int maxInFlight) {
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Streams answers and stops reading them after the code blocks their question asks for, or waits for
+     * complete answers (the default).
+     */
+    public static void setStreaming(boolean enabled) {
+        streaming = enabled;
+    }
+
+    /**
+     * Shares one requests/tokens-per-minute limiter between all threads; null disables client-side limiting.
+     */
+    public static void setRateLimiter(RateLimiter limiter) {
+        rateLimiter = limiter;
+    }
+
+    public static RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * The retry policy shared by queryGPT and queryGPT4; its counters report retries and time spent sleeping.
+     */
+    public static RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public static void setRetryPolicy(RetryPolicy policy) {
+        retryPolicy = policy;
+    }
+
+    /**
+     * @return the latencies of recent successful requests
+     */
+    public static LatencyTracker getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Sends a duplicate of requests slower than the policy's percentile; null (the default) disables hedging.
+     */
+    public static void setHedgePolicy(HedgePolicy policy) {
+        hedgePolicy = policy;
+    }
+
+    public static HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    private static ExecutorService newExecutor() {
         try {
-            ChatCompletionResponse response = chatGPT.chatCompletion(chatCompletion);
-            Message res = response.getChoices().get(0).getMessage();
-            return res.getContent();
-        } catch (Exception e) {
-            e.printStackTrace();
-            Thread.sleep(1000);
-            return query(apiKey, apiUrl, question);
+            // the build targets Java 17, so virtual threads can only be reached reflectively
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "queryGPT4-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
     }
 }
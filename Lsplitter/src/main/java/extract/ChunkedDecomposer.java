@@ -0,0 +1,347 @@
+package extract;
+
+import chatGPT.Tokens;
+import chatGPT.queryGPT4;
+import org.eclipse.jdt.core.dom.*;
+import util.Utils;
+import util.changeInfomation;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Decomposition of methods too long for a single prompt.
+ * <p>
+ * The method body is cut at statement boundaries into fragments of at most {@code chunkTokens} tokens.
+ * A statement that is too long on its own is split inside its blocks, and a switch is split between its
+ * case groups. The fragments are decomposed concurrently; every reply gives the fragment rewritten with
+ * invocations plus the new helper methods. The rewritten fragments replace the originals in the method,
+ * and the helpers are appended after it, which gives the same shape as a single decomposition answer.
+ * A fragment that is the unbraced body of an if, loop, etc. is put back in braces when its rewrite has
+ * several statements, so that all of them stay under the condition or loop.
+ */
+class ChunkedDecomposer {
+    static final String FRAGMENT = "lsplitterFragment";
+    private final int chunkTokens;
+    private final Function<String, CompletableFuture<String>> query;
+
+    private static class Chunk {
+        int start, end, tokens;
+        String switchExpression;
+        boolean unbraced;
+        Chunk(int start, int end, int tokens, String switchExpression, boolean unbraced) {
+            this.start = start;
+            this.end = end;
+            this.tokens = tokens;
+            this.switchExpression = switchExpression;
+            this.unbraced = unbraced;
+        }
+    }
+
+    ChunkedDecomposer(int chunkTokens, Function<String, CompletableFuture<String>> query) {
+        this.chunkTokens = chunkTokens;
+        this.query = query;
+    }
+
+    /**
+     * @return whether the method has more than {@code chunkTokens} tokens; never when chunkTokens is 0
+     */
+    static boolean needsChunking(String method, int chunkTokens) {
+        return chunkTokens > 0 && Tokens.count(queryGPT4.MODEL, method) > chunkTokens;
+    }
+
+    /**
+     * @return the original method with each fragment replaced by its decomposition, followed by the new methods
+     * @throws chatGPT.QueryException if a fragment could not be decomposed
+     */
+    String decompose(String method) throws InterruptedException {
+        ASTParser parser = ASTParser.newParser(AST.JLS19);
+        parser.setSource(method.toCharArray());
+        parser.setKind(ASTParser.K_CLASS_BODY_DECLARATIONS);
+        TypeDeclaration typeDeclaration = (TypeDeclaration) parser.createAST(null);
+        MethodDeclaration md = typeDeclaration.getMethods()[0];
+        String signature = method.substring(md.getStartPosition(), md.getBody().getStartPosition()).trim();
+
+        List<Chunk> chunks = new ArrayList<>();
+        split(method, md.getBody().statements(), null, false, chunks);
+        // leftovers between oversized statements are too small to give useful methods, they stay as they are
+        chunks.removeIf(chunk -> chunk.tokens < chunkTokens / 8);
+        System.out.println("USE CHUNKED DECOMPOSITION: " + chunks.size() + " fragments");
+
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            answers.add(query.apply(prompt(signature, method, chunk)));
+        }
+        List<changeInfomation> changes = new ArrayList<>();
+        StringBuilder helpers = new StringBuilder();
+        Set<String> usedNames = new HashSet<>();
+        usedNames.add(md.getName().getIdentifier());
+        usedNames.add(FRAGMENT);
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            String answer = Utils.getCodeFromAnswer(extractMethod.join(answers.get(i)));
+            String rewritten = stitchFragment(answer, chunk, usedNames, i, helpers);
+            if (rewritten != null) {
+                changes.add(new changeInfomation(chunk.start, chunk.end, rewritten));
+            }
+        }
+        return Utils.changeString(method, changes).trim() + "\n" + helpers.toString().trim();
+    }
+
+    /**
+     * Groups consecutive units (statements, or case groups inside a switch) into chunks, descending into
+     * the blocks of every unit that does not fit on its own.
+     * @param unbraced whether {@code statements} is the single statement an if, loop, etc. has as its body
+     */
+    private void split(String method, List<?> statements, String switchExpression, boolean unbraced, List<Chunk> chunks) {
+        List<int[]> units = new ArrayList<>();
+        if (switchExpression == null) {
+            for (Object o : statements) {
+                Statement statement = (Statement) o;
+                units.add(new int[]{statement.getStartPosition(), statement.getStartPosition() + statement.getLength()});
+            }
+        } else {
+            // one unit per case group: the labels and the statements up to the next label
+            for (int k = 0; k < statements.size(); k++) {
+                Statement statement = (Statement) statements.get(k);
+                int end = statement.getStartPosition() + statement.getLength();
+                if (statement instanceof SwitchCase && (k == 0 || !(statements.get(k - 1) instanceof SwitchCase))) {
+                    units.add(new int[]{statement.getStartPosition(), end});
+                } else if (!units.isEmpty()) {
+                    units.get(units.size() - 1)[1] = end;
+                }
+            }
+        }
+        int groupStart = -1, groupEnd = -1, groupTokens = 0;
+        for (int k = 0; k < units.size(); k++) {
+            int[] unit = units.get(k);
+            int tokens = Tokens.count(queryGPT4.MODEL, method.substring(unit[0], unit[1]));
+            if (tokens > chunkTokens) {
+                if (groupStart >= 0) {
+                    chunks.add(new Chunk(groupStart, groupEnd, groupTokens, switchExpression, unbraced));
+                    groupStart = -1;
+                    groupTokens = 0;
+                }
+                if (!splitInside(method, statements, unit, switchExpression, chunks)) {
+                    chunks.add(new Chunk(unit[0], unit[1], tokens, switchExpression, unbraced));
+                }
+                continue;
+            }
+            if (groupStart >= 0) {
+                // comments between the units are part of the fragment too
+                int withGap = Tokens.count(queryGPT4.MODEL, method.substring(groupEnd, unit[1]));
+                if (groupTokens + withGap > chunkTokens) {
+                    chunks.add(new Chunk(groupStart, groupEnd, groupTokens, switchExpression, unbraced));
+                    groupStart = -1;
+                    groupTokens = 0;
+                } else {
+                    tokens = withGap;
+                }
+            }
+            if (groupStart < 0) {
+                groupStart = unit[0];
+            }
+            groupEnd = unit[1];
+            groupTokens += tokens;
+        }
+        if (groupStart >= 0) {
+            chunks.add(new Chunk(groupStart, groupEnd, groupTokens, switchExpression, unbraced));
+        }
+    }
+
+    /**
+     * Splits an oversized unit inside its nested blocks.
+     * @return false if the unit has no nested statement list to split
+     */
+    private boolean splitInside(String method, List<?> statements, int[] unit, String switchExpression, List<Chunk> chunks) {
+        List<Statement> inUnit = new ArrayList<>();
+        for (Object o : statements) {
+            Statement statement = (Statement) o;
+            if (statement.getStartPosition() >= unit[0] && statement.getStartPosition() < unit[1]) {
+                inUnit.add(statement);
+            }
+        }
+        if (switchExpression != null) {
+            // an oversized case group: split its statements, the labels stay where they are
+            List<Statement> body = new ArrayList<>();
+            for (Statement statement : inUnit) {
+                if (!(statement instanceof SwitchCase)) {
+                    body.add(statement);
+                }
+            }
+            if (body.isEmpty()) {
+                return false;
+            }
+            split(method, body, null, false, chunks);
+            return true;
+        }
+        Statement statement = inUnit.get(0);
+        boolean found = false;
+        for (Object child : childStatementLists(statement)) {
+            if (child instanceof SwitchStatement) {
+                SwitchStatement switchStatement = (SwitchStatement) child;
+                split(method, switchStatement.statements(), switchStatement.getExpression().toString(), false, chunks);
+            } else if (child instanceof Statement) {
+                split(method, Collections.singletonList(child), null, true, chunks);
+            } else {
+                split(method, (List<?>) child, null, false, chunks);
+            }
+            found = true;
+        }
+        return found;
+    }
+
+    /**
+     * @return the statement lists nested directly in {@code statement}; a switch, and a body that is not
+     * a block, are returned themselves
+     */
+    private static List<Object> childStatementLists(Statement statement) {
+        List<Object> result = new ArrayList<>();
+        if (statement instanceof Block) {
+            result.add(((Block) statement).statements());
+        } else if (statement instanceof SwitchStatement) {
+            result.add(statement);
+        } else if (statement instanceof IfStatement) {
+            addBody(result, ((IfStatement) statement).getThenStatement());
+            addBody(result, ((IfStatement) statement).getElseStatement());
+        } else if (statement instanceof ForStatement) {
+            addBody(result, ((ForStatement) statement).getBody());
+        } else if (statement instanceof EnhancedForStatement) {
+            addBody(result, ((EnhancedForStatement) statement).getBody());
+        } else if (statement instanceof WhileStatement) {
+            addBody(result, ((WhileStatement) statement).getBody());
+        } else if (statement instanceof DoStatement) {
+            addBody(result, ((DoStatement) statement).getBody());
+        } else if (statement instanceof TryStatement) {
+            TryStatement tryStatement = (TryStatement) statement;
+            addBody(result, tryStatement.getBody());
+            for (Object o : tryStatement.catchClauses()) {
+                addBody(result, ((CatchClause) o).getBody());
+            }
+            addBody(result, tryStatement.getFinally());
+        } else if (statement instanceof SynchronizedStatement) {
+            addBody(result, ((SynchronizedStatement) statement).getBody());
+        } else if (statement instanceof LabeledStatement) {
+            addBody(result, ((LabeledStatement) statement).getBody());
+        }
+        return result;
+    }
+
+    private static void addBody(List<Object> result, Statement body) {
+        if (body instanceof Block) {
+            result.add(((Block) body).statements());
+        } else if (body instanceof SwitchStatement) {
+            result.add(body);
+        } else if (body != null) {
+            result.add(body);
+        }
+    }
+
+    private static String prompt(String signature, String method, Chunk chunk) {
+        String fragment = method.substring(chunk.start, chunk.end);
+        if (chunk.switchExpression != null) {
+            fragment = "switch (" + chunk.switchExpression + ") {\n" + fragment + "\n}";
+        }
+        String code = "void " + FRAGMENT + "() {\n" + fragment + "\n}";
+        return "Suppose you are a skilled software engineer and now you should refactor your code. The long method `" + signature
+                + "` is too long to be refactored at once, so here we present a fragment of its body, wrapped in the method " + FRAGMENT
+                + ". Please decompose the fragment into small methods. Give me the full method " + FRAGMENT
+                + " with the fragment rewritten to invoke the new methods, followed by the new methods with comment for each method in Javadoc format."
+                + " Keep the switch and every case label of the fragment, and keep the declarations of local variables in " + FRAGMENT
+                + ", because the code after the fragment may use them. Variables and fields declared outside the fragment can be passed as parameters."
+                + " The new methods should have unique method names. Please avoid tiny methods, empty methods, or new classes. Don't generate code summary.\n"
+                + "```java\n" + code + "\n```\n";
+    }
+
+    /**
+     * Takes the rewritten fragment out of an answer and adds the helper methods, renamed if their names are taken.
+     * @return the rewritten fragment, or null if the answer cannot be used and the fragment is kept as it is
+     */
+    private static String stitchFragment(String answer, Chunk chunk, Set<String> usedNames, int index, StringBuilder helpers) {
+        String code = "class test {\n" + answer + "\n}\n";
+        CompilationUnit cu = parse(code);
+        Map<String, MethodDeclaration> declarations = declarations(cu);
+        if (!declarations.containsKey(FRAGMENT)) {
+            return null;
+        }
+        Map<String, String> renames = new HashMap<>();
+        for (String name : declarations.keySet()) {
+            if (!name.equals(FRAGMENT) && usedNames.contains(name)) {
+                String newName = name + index;
+                while (usedNames.contains(newName) || declarations.containsKey(newName)) {
+                    newName += "_";
+                }
+                renames.put(name, newName);
+            }
+        }
+        if (!renames.isEmpty()) {
+            code = rename(cu, code, renames);
+            declarations = declarations(parse(code));
+        }
+        for (Map.Entry<String, MethodDeclaration> entry : declarations.entrySet()) {
+            if (entry.getKey().equals(FRAGMENT)) {
+                continue;
+            }
+            usedNames.add(entry.getKey());
+            MethodDeclaration helper = entry.getValue();
+            helpers.append(code, helper.getStartPosition(), helper.getStartPosition() + helper.getLength()).append("\n");
+        }
+        List<?> statements = declarations.get(FRAGMENT).getBody().statements();
+        if (chunk.switchExpression != null) {
+            if (statements.size() != 1 || !(statements.get(0) instanceof SwitchStatement)) {
+                return null;
+            }
+            statements = ((SwitchStatement) statements.get(0)).statements();
+        }
+        if (statements.isEmpty()) {
+            return null;
+        }
+        Statement first = (Statement) statements.get(0);
+        Statement last = (Statement) statements.get(statements.size() - 1);
+        String rewritten = code.substring(first.getStartPosition(), last.getStartPosition() + last.getLength());
+        if (chunk.unbraced && statements.size() > 1) {
+            // without braces only the first statement would stay under the if or loop
+            rewritten = "{\n" + rewritten + "\n}";
+        }
+        return rewritten;
+    }
+
+    private static String rename(CompilationUnit cu, String code, Map<String, String> renames) {
+        List<changeInfomation> changes = new ArrayList<>();
+        cu.accept(new ASTVisitor() {
+            public boolean visit(SimpleName node) {
+                ASTNode parent = node.getParent();
+                // declarations inside anonymous or local classes keep their names
+                boolean isMethodName = parent instanceof MethodDeclaration && ((MethodDeclaration) parent).getName() == node
+                        && parent.getParent() == cu.types().get(0)
+                        || parent instanceof MethodInvocation && ((MethodInvocation) parent).getName() == node;
+                if (isMethodName && renames.containsKey(node.getIdentifier())) {
+                    changes.add(new changeInfomation(node.getStartPosition(), node.getStartPosition() + node.getLength(), renames.get(node.getIdentifier())));
+                }
+                return true;
+            }
+        });
+        return Utils.changeString(code, changes);
+    }
+
+    /**
+     * @return the methods of the wrapper class, without those of anonymous or local classes in their bodies
+     */
+    private static Map<String, MethodDeclaration> declarations(CompilationUnit cu) {
+        Map<String, MethodDeclaration> result = new LinkedHashMap<>();
+        if (cu.types().isEmpty()) {
+            return result;
+        }
+        for (MethodDeclaration md : ((TypeDeclaration) cu.types().get(0)).getMethods()) {
+            result.put(md.getName().getIdentifier(), md);
+        }
+        return result;
+    }
+
+    private static CompilationUnit parse(String code) {
+        ASTParser astParser = Utils.getNewASTParser();
+        astParser.setSource(code.toCharArray());
+        return (CompilationUnit) astParser.createAST(null);
+    }
+}
@@ -0,0 +1,230 @@
+package extract;
+
+import gr.uom.java.xmi.UMLModel;
+import gr.uom.java.xmi.decomposition.Visitor;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.compiler.IProblem;
+import org.eclipse.jdt.core.dom.*;
+import org.refactoringminer.api.Refactoring;
+import org.refactoringminer.api.RefactoringType;
+import org.refactoringminer.rm1.GitHistoryRefactoringMinerImpl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects the Extract Method refactorings between the original method and each new version of its
+ * decomposition, as {@code GitHistoryRefactoringMinerImpl.detectAtFileContents} does, but builds the
+ * UML model of the original method only once.
+ * <p>
+ * One detector serves one file: the original never changes while extractMethod iterates, so its
+ * model is built on the first call and reused, and only the model of the new version is built on
+ * every call.
+ * <p>
+ * Many versions are simple enough not to need RefactoringMiner at all: {@link #detectByAst} finds
+ * the invocations of the helpers on the JDT trees when every helper is called exactly once, from the
+ * original method or from another helper, and keeps at least one statement of the original.
+ */
+class ExtractMethodDetector {
+    private static final String PATH = "src/test.java";
+    private static final Set<String> DIRECTORIES = Set.of("src");
+
+    final String oldMethod;
+    final String oldMethodHash;
+    private UMLModel before;
+    private MethodDeclaration original;
+    private Set<String> originalStatements;
+
+    /**
+     * @param oldMethod the original method, wrapped in a class
+     */
+    ExtractMethodDetector(String oldMethod) {
+        this.oldMethod = oldMethod;
+        this.oldMethodHash = InvocationMemo.hash(oldMethod);
+    }
+
+    /**
+     * @param newMethod the decomposed methods, wrapped in a class
+     * @return the Extract Method refactorings from the original method to {@code newMethod}
+     */
+    List<Refactoring> detect(String newMethod) {
+        List<Refactoring> refs = new ArrayList<>();
+        if (newMethod.equals(oldMethod)) {
+            // detectAtFileContents skips identical files
+            return refs;
+        }
+        if (before == null) {
+            before = createModel(oldMethod);
+        }
+        try {
+            for (Refactoring ref : before.diff(createModel(newMethod)).getRefactorings()) {
+                if (ref.getRefactoringType() == RefactoringType.EXTRACT_OPERATION) {
+                    refs.add(ref);
+                }
+            }
+        } catch (Exception e) {
+            // what the default RefactoringHandler of detectAtFileContents does
+            throw new RuntimeException(e);
+        }
+        return refs;
+    }
+
+    /**
+     * Finds the invocations of the helpers without RefactoringMiner, with the same lines, offsets and
+     * arguments it reports. Returns null when that is not certain to give RefactoringMiner's result:
+     * when the text does not parse, the original method is missing, a helper is called more than once,
+     * from itself or from outside the decomposition, or a helper has no statement of the original.
+     *
+     * @param newMethod the decomposed methods, wrapped in a class
+     * @return the invocations in order of appearance, or null if RefactoringMiner has to decide
+     */
+    List<lineAndInvocation> detectByAst(String newMethod) {
+        if (originalStatements == null) {
+            CompilationUnit unit = parse(oldMethod);
+            MethodDeclaration[] methods = unit == null ? new MethodDeclaration[0] : ((TypeDeclaration) unit.types().get(0)).getMethods();
+            original = methods.length == 1 ? methods[0] : null;
+            originalStatements = new HashSet<>();
+            if (original != null && original.getBody() != null) {
+                original.getBody().accept(new ASTVisitor() {
+                    @Override
+                    public void preVisit(ASTNode node) {
+                        if (node instanceof Statement && !(node instanceof Block)) {
+                            originalStatements.add(node.toString());
+                        }
+                    }
+                });
+            }
+        }
+        if (original == null || originalStatements.isEmpty()) {
+            return null;
+        }
+        CompilationUnit unit = parse(newMethod);
+        if (unit == null) {
+            return null;
+        }
+        MethodDeclaration main = null;
+        Map<String, MethodDeclaration> helpers = new HashMap<>();
+        for (MethodDeclaration method : ((TypeDeclaration) unit.types().get(0)).getMethods()) {
+            String name = method.getName().getIdentifier();
+            if (name.equals(original.getName().getIdentifier())) {
+                if (main != null || !sameParameters(method, original)) {
+                    return null;
+                }
+                main = method;
+            } else if (helpers.put(name, method) != null) {
+                // overloaded helpers
+                return null;
+            }
+        }
+        if (main == null || main.getBody() == null || helpers.isEmpty()) {
+            return null;
+        }
+        for (MethodDeclaration helper : helpers.values()) {
+            if (helper.getBody() == null || !copiesOriginal(helper.getBody())) {
+                return null;
+            }
+        }
+        MethodDeclaration source = main;
+        Map<String, MethodInvocation> calls = new HashMap<>();
+        boolean[] undecided = new boolean[1];
+        unit.accept(new ASTVisitor() {
+            @Override
+            public boolean visit(MethodInvocation node) {
+                String name = node.getName().getIdentifier();
+                if (helpers.containsKey(name)) {
+                    boolean local = node.getExpression() == null || node.getExpression() instanceof ThisExpression;
+                    MethodDeclaration caller = enclosingMethod(node);
+                    boolean fromDecomposition = caller == source || (helpers.containsValue(caller) && caller != helpers.get(name));
+                    if (!local || !fromDecomposition || calls.put(name, node) != null) {
+                        undecided[0] = true;
+                    }
+                }
+                return true;
+            }
+        });
+        if (undecided[0] || calls.size() != helpers.size()) {
+            return null;
+        }
+        List<lineAndInvocation> invocations = new ArrayList<>();
+        for (MethodInvocation call : calls.values()) {
+            lineAndInvocation invocation = new lineAndInvocation(unit.getLineNumber(call.getStartPosition()), call.getName().getIdentifier(),
+                    call.getStartPosition(), call.getStartPosition() + call.getLength());
+            for (Object argument : call.arguments()) {
+                invocation.arguments.add(Visitor.stringify((ASTNode) argument));
+            }
+            invocations.add(invocation);
+        }
+        invocations.sort((a, b) -> Integer.compare(a.startPostion, b.startPostion));
+        return invocations;
+    }
+
+    /**
+     * @return whether the body has a statement, at any depth, that is also a statement of the original
+     */
+    private boolean copiesOriginal(Block body) {
+        boolean[] found = new boolean[1];
+        body.accept(new ASTVisitor() {
+            @Override
+            public void preVisit(ASTNode node) {
+                if (node instanceof Statement && !(node instanceof Block) && originalStatements.contains(node.toString())) {
+                    found[0] = true;
+                }
+            }
+        });
+        return found[0];
+    }
+
+    private static MethodDeclaration enclosingMethod(ASTNode node) {
+        while (node != null && !(node instanceof MethodDeclaration)) {
+            node = node.getParent();
+        }
+        return (MethodDeclaration) node;
+    }
+
+    private static boolean sameParameters(MethodDeclaration a, MethodDeclaration b) {
+        if (a.parameters().size() != b.parameters().size()) {
+            return false;
+        }
+        for (int i = 0; i < a.parameters().size(); i++) {
+            if (!((SingleVariableDeclaration) a.parameters().get(i)).getType().toString()
+                    .equals(((SingleVariableDeclaration) b.parameters().get(i)).getType().toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the compilation unit of a single class without syntax errors, or null
+     */
+    private static CompilationUnit parse(String code) {
+        ASTParser parser = ASTParser.newParser(AST.JLS19);
+        Map<String, String> options = JavaCore.getOptions();
+        JavaCore.setComplianceOptions(JavaCore.VERSION_17, options);
+        parser.setCompilerOptions(options);
+        parser.setKind(ASTParser.K_COMPILATION_UNIT);
+        parser.setSource(code.toCharArray());
+        CompilationUnit unit = (CompilationUnit) parser.createAST(null);
+        for (IProblem problem : unit.getProblems()) {
+            if (problem.isError()) {
+                return null;
+            }
+        }
+        if (unit.types().size() != 1 || !(unit.types().get(0) instanceof TypeDeclaration)) {
+            return null;
+        }
+        return unit;
+    }
+
+    private static UMLModel createModel(String code) {
+        try {
+            return GitHistoryRefactoringMinerImpl.createModel(Map.of(PATH, code), DIRECTORIES);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package extract;
+
+import gr.uom.java.xmi.decomposition.Visitor;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.compiler.IProblem;
+import org.eclipse.jdt.core.dom.*;
+import util.Utils;
+import util.changeInfomation;
+import visitor.MDVisitor;
+import visitor.methodInfomation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The invocations of extracted methods and the methods of one version of the decomposition, kept up to
+ * date through the edits extractMethod makes instead of detecting them again.
+ * <p>
+ * {@link #apply} rewrites the text as an iteration of extractMethod does (the edits, then the appended
+ * methods, then the class wrapper) and maps every invocation and method through it: entries before,
+ * between and after the edits are shifted, the invocations a merge replaces become one invocation of the
+ * merged method, and removed methods are dropped. Whenever an edit could change what RefactoringMiner
+ * sees beyond that, such as inlined code or a merged method calling another helper, or a removed method
+ * holding invocations, the index gives up and the next version is detected from scratch.
+ */
+class InvocationIndex {
+    private static final String PREFIX = "class test {\n";
+    private static final String SUFFIX = "\n}\n";
+    private static final String STATEMENTS_PREFIX = "class test {\nvoid test() {\n";
+
+    final String text;
+    final List<lineAndInvocation> invocations;
+    final Map<String, methodInfomation> methods;
+
+    /**
+     * @param text        a version of the decomposition, wrapped in a class
+     * @param invocations its invocations of extracted methods, sorted by line
+     * @param methods     its methods by name
+     */
+    InvocationIndex(String text, List<lineAndInvocation> invocations, Map<String, methodInfomation> methods) {
+        this.text = text;
+        this.invocations = invocations;
+        this.methods = methods;
+    }
+
+    /**
+     * @param changes  the edits of {@link #text}, as given to {@link Utils#changeString}
+     * @param addCodes the methods appended after the edits
+     * @return the index of the next version, or null when it has to be detected again
+     */
+    InvocationIndex apply(List<changeInfomation> changes, List<String> addCodes) {
+        List<changeInfomation> sorted = new ArrayList<>(changes);
+        sorted.sort(Comparator.comparingInt(x -> x.start));
+        String edited = Utils.changeString(text, new ArrayList<>(sorted));
+        int from = edited.indexOf("{") + 1;
+        int to = edited.lastIndexOf("}");
+        if (from <= 0 || to < from) {
+            return null;
+        }
+        StringBuilder next = new StringBuilder(PREFIX).append(edited, from, to);
+        int[] addStarts = new int[addCodes.size()];
+        for (int i = 0; i < addCodes.size(); i++) {
+            next.append("\n");
+            addStarts[i] = next.length();
+            next.append(addCodes.get(i)).append("\n");
+        }
+        next.append(SUFFIX);
+        String nextText = next.toString();
+        int shift = PREFIX.length() - from;
+
+        // methods: removed ones are dropped, edited ones parsed again with the methods nested in them, the others shifted
+        List<methodInfomation> reparse = new ArrayList<>();
+        for (methodInfomation method : methods.values()) {
+            changeInfomation change = overlapping(sorted, method.startPosition, method.endPosition);
+            if (change != null && !removes(change, method) && !nested(methods.values(), method)) {
+                reparse.add(method);
+            }
+        }
+        Map<String, methodInfomation> nextMethods = new HashMap<>();
+        for (methodInfomation method : methods.values()) {
+            if (nested(reparse, method) || reparse.contains(method)) {
+                continue;
+            }
+            changeInfomation change = overlapping(sorted, method.startPosition, method.endPosition);
+            if (change == null) {
+                int start = map(sorted, method.startPosition) + shift;
+                nextMethods.put(method.name, new methodInfomation(method.name, method.body, method.comment, start,
+                        start + method.endPosition - method.startPosition, method.returnType));
+            } else if (!removes(change, method) || holdsInvocation(method.startPosition, method.endPosition)) {
+                return null;
+            }
+        }
+        for (methodInfomation method : reparse) {
+            int start = map(sorted, method.startPosition) + shift;
+            int end = map(sorted, method.endPosition) + shift;
+            if (!parseMethods(nextText.substring(start, end), start, nextMethods)) {
+                return null;
+            }
+        }
+        List<String> added = new ArrayList<>();
+        for (int i = 0; i < addCodes.size(); i++) {
+            Map<String, methodInfomation> parsed = new HashMap<>();
+            if (!parseMethods(addCodes.get(i), addStarts[i], parsed)) {
+                return null;
+            }
+            for (methodInfomation method : parsed.values()) {
+                if (nextMethods.put(method.name, method) != null) {
+                    return null;
+                }
+                added.add(method.name);
+            }
+            if (callsAny(addCodes.get(i), nextMethods, parsed.keySet())) {
+                return null;
+            }
+        }
+
+        // invocations: the replaced ones give way to the invocation in the new code, the others are shifted
+        List<lineAndInvocation> nextInvocations = new ArrayList<>();
+        for (lineAndInvocation invocation : invocations) {
+            if (!nextMethods.containsKey(invocation.InvocationName)) {
+                if (overlapping(sorted, invocation.startPostion, invocation.endPostion) == null) {
+                    // the invocation survives but its method is gone
+                    return null;
+                }
+                continue;
+            }
+            if (overlapping(sorted, invocation.startPostion, invocation.endPostion) != null) {
+                return null;
+            }
+            int start = map(sorted, invocation.startPostion) + shift;
+            lineAndInvocation shifted = new lineAndInvocation(0, invocation.InvocationName, start, start + invocation.endPostion - invocation.startPostion);
+            shifted.arguments.addAll(invocation.arguments);
+            nextInvocations.add(shifted);
+        }
+        int offset = shift;
+        for (changeInfomation change : sorted) {
+            int position = change.start + offset;
+            offset += change.newCode.length() - (change.end - change.start);
+            if (change.newCode.isEmpty()) {
+                continue;
+            }
+            String called = singleCall(change.newCode, added);
+            if (callsAny(change.newCode, nextMethods, called == null ? Set.of() : Set.of(called))) {
+                return null;
+            }
+            if (called == null) {
+                continue;
+            }
+            lineAndInvocation invocation = invocationIn(change.newCode, called, position);
+            if (invocation == null) {
+                return null;
+            }
+            nextInvocations.add(invocation);
+        }
+        int[] lineStarts = lineStarts(nextText);
+        for (lineAndInvocation invocation : nextInvocations) {
+            invocation.line = lineOf(lineStarts, invocation.startPostion);
+        }
+        nextInvocations.sort(Comparator.comparingInt((lineAndInvocation x) -> x.line).thenComparingInt(x -> x.startPostion));
+        return new InvocationIndex(nextText, nextInvocations, nextMethods);
+    }
+
+    /**
+     * @return whether this index describes the same invocations and methods as the detected ones
+     */
+    boolean matches(List<lineAndInvocation> detected, Map<String, methodInfomation> detectedMethods) {
+        if (detected.size() != invocations.size() || !detectedMethods.keySet().equals(methods.keySet())) {
+            return false;
+        }
+        for (int i = 0; i < detected.size(); i++) {
+            lineAndInvocation a = detected.get(i), b = invocations.get(i);
+            if (a.line != b.line || !a.InvocationName.equals(b.InvocationName) || a.startPostion != b.startPostion
+                    || a.endPostion != b.endPostion || !a.arguments.equals(b.arguments)) {
+                return false;
+            }
+        }
+        for (methodInfomation a : detectedMethods.values()) {
+            methodInfomation b = methods.get(a.name);
+            if (a.startPosition != b.startPosition || a.endPosition != b.endPosition || !a.body.equals(b.body)
+                    || !a.comment.equals(b.comment) || !a.returnType.equals(b.returnType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean holdsInvocation(int start, int end) {
+        for (lineAndInvocation invocation : invocations) {
+            if (start <= invocation.startPostion && invocation.startPostion < end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the method is declared inside one of {@code outers}, e.g. in an anonymous class
+     */
+    private static boolean nested(Iterable<methodInfomation> outers, methodInfomation method) {
+        for (methodInfomation outer : outers) {
+            if (outer != method && outer.startPosition <= method.startPosition && method.endPosition <= outer.endPosition) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean removes(changeInfomation change, methodInfomation method) {
+        return change.newCode.isEmpty() && change.start <= method.startPosition && method.endPosition <= change.end;
+    }
+
+    /**
+     * @return the first edit overlapping [start, end), or null
+     */
+    private static changeInfomation overlapping(List<changeInfomation> sorted, int start, int end) {
+        for (changeInfomation change : sorted) {
+            if (change.start < end && start < change.end || change.start == change.end && start < change.start && change.start < end) {
+                // an insertion strictly inside counts as well
+                return change;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return where a position of the old text that no edit covers is after the edits
+     */
+    private static int map(List<changeInfomation> sorted, int position) {
+        int result = position;
+        for (changeInfomation change : sorted) {
+            if (change.end > position) {
+                break;
+            }
+            result += change.newCode.length() - (change.end - change.start);
+        }
+        return result;
+    }
+
+    /**
+     * Parses the methods of {@code code}, found at {@code offset} of the next text, as getNameToComment would.
+     */
+    private static boolean parseMethods(String code, int offset, Map<String, methodInfomation> into) {
+        String wrapped = PREFIX + code + SUFFIX;
+        ASTParser parser = Utils.getNewASTParser();
+        parser.setSource(wrapped.toCharArray());
+        CompilationUnit unit = (CompilationUnit) parser.createAST(null);
+        MDVisitor visitor = new MDVisitor();
+        unit.accept(visitor);
+        if (visitor.methods.isEmpty()) {
+            return false;
+        }
+        for (methodInfomation method : visitor.methods.values()) {
+            method.startPosition += offset - PREFIX.length();
+            method.endPosition += offset - PREFIX.length();
+            if (into.put(method.name, method) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the one method of {@code names} that {@code code} calls, if it calls exactly one of them once
+     */
+    private static String singleCall(String code, List<String> names) {
+        String called = null;
+        for (String name : names) {
+            int count = count(code, name);
+            if (count > 1 || count == 1 && called != null) {
+                return null;
+            }
+            if (count == 1) {
+                called = name;
+            }
+        }
+        return called;
+    }
+
+    /**
+     * @return whether {@code code} may call a method of {@code methods} other than {@code except}; names
+     * are matched on the text, so a false positive only costs a detection
+     */
+    private static boolean callsAny(String code, Map<String, methodInfomation> methods, Set<String> except) {
+        for (String name : methods.keySet()) {
+            if (!except.contains(name) && count(code, name) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int count(String code, String name) {
+        Matcher matcher = Pattern.compile("\\b" + Pattern.quote(name) + "\\s*\\(").matcher(code);
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the invocation of {@code name} in the statements {@code code}, found at {@code offset} of
+     * the next text, with the offsets and arguments RefactoringMiner would report; null if it does not parse
+     */
+    private static lineAndInvocation invocationIn(String code, String name, int offset) {
+        ASTParser parser = Utils.getNewASTParser();
+        Map<String, String> options = JavaCore.getOptions();
+        JavaCore.setComplianceOptions(JavaCore.VERSION_17, options);
+        parser.setCompilerOptions(options);
+        parser.setSource((STATEMENTS_PREFIX + code + "\n}\n}\n").toCharArray());
+        CompilationUnit unit = (CompilationUnit) parser.createAST(null);
+        for (IProblem problem : unit.getProblems()) {
+            if (problem.isError()) {
+                return null;
+            }
+        }
+        List<MethodInvocation> calls = new ArrayList<>();
+        unit.accept(new ASTVisitor() {
+            @Override
+            public boolean visit(MethodInvocation node) {
+                if (node.getName().getIdentifier().equals(name)) {
+                    calls.add(node);
+                }
+                return true;
+            }
+        });
+        if (calls.size() != 1 || calls.get(0).getExpression() != null && !(calls.get(0).getExpression() instanceof ThisExpression)) {
+            return null;
+        }
+        MethodInvocation call = calls.get(0);
+        int start = offset + call.getStartPosition() - STATEMENTS_PREFIX.length();
+        lineAndInvocation invocation = new lineAndInvocation(0, name, start, start + call.getLength());
+        for (Object argument : call.arguments()) {
+            invocation.arguments.add(Visitor.stringify((ASTNode) argument));
+        }
+        return invocation;
+    }
+
+    private static int[] lineStarts(String text) {
+        int[] starts = new int[16];
+        int n = 0;
+        starts[n++] = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                if (n == starts.length) {
+                    starts = Arrays.copyOf(starts, n * 2);
+                }
+                starts[n++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(starts, n);
+    }
+
+    /**
+     * @return the 1-based line of an offset, as CompilationUnit.getLineNumber gives it
+     */
+    private static int lineOf(int[] lineStarts, int offset) {
+        int index = Arrays.binarySearch(lineStarts, offset);
+        return (index >= 0 ? index : -index - 2) + 1;
+    }
+}
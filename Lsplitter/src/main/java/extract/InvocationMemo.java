@@ -0,0 +1,109 @@
+package extract;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded memo of detected invocations, keyed by the hashes of the original and the new text.
+ * <p>
+ * extractMethod often detects on the same pair twice (the last text of the merge loop is the first
+ * text of the inline loop), and re-runs over a corpus repeat every pair. Entries keep only the
+ * fields of {@link lineAndInvocation}, not RefactoringMiner's models, and the least recently used
+ * entry is dropped when the memo is full. Callers get fresh copies they may change.
+ */
+class InvocationMemo {
+    static final InvocationMemo shared = new InvocationMemo(4096);
+
+    private final int capacity;
+    private final Map<String, Entry> entries;
+    private long hits;
+    private long misses;
+
+    InvocationMemo(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > InvocationMemo.this.capacity;
+            }
+        };
+    }
+
+    static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a copy of the invocations detected for the pair, or null if they are not known
+     */
+    synchronized List<lineAndInvocation> get(String oldHash, String newHash) {
+        Entry entry = entries.get(oldHash + newHash);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.toList();
+    }
+
+    synchronized void put(String oldHash, String newHash, List<lineAndInvocation> invocations) {
+        entries.put(oldHash + newHash, new Entry(invocations));
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    private static class Entry {
+        final int[] lines;
+        final int[] starts;
+        final int[] ends;
+        final String[] names;
+        final String[][] arguments;
+
+        Entry(List<lineAndInvocation> invocations) {
+            int n = invocations.size();
+            lines = new int[n];
+            starts = new int[n];
+            ends = new int[n];
+            names = new String[n];
+            arguments = new String[n][];
+            for (int i = 0; i < n; i++) {
+                lineAndInvocation invocation = invocations.get(i);
+                lines[i] = invocation.line;
+                starts[i] = invocation.startPostion;
+                ends[i] = invocation.endPostion;
+                names[i] = invocation.InvocationName;
+                arguments[i] = invocation.arguments.toArray(new String[0]);
+            }
+        }
+
+        List<lineAndInvocation> toList() {
+            List<lineAndInvocation> invocations = new ArrayList<>(names.length);
+            for (int i = 0; i < names.length; i++) {
+                lineAndInvocation invocation = new lineAndInvocation(lines[i], names[i], starts[i], ends[i]);
+                invocation.arguments.addAll(List.of(arguments[i]));
+                invocations.add(invocation);
+            }
+            return invocations;
+        }
+    }
+}
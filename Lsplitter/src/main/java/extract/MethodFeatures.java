@@ -0,0 +1,108 @@
+package extract;
+
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import util.LCS;
+import util.Utils;
+import util.Vocabulary;
+import visitor.PostNodeVisitor;
+import visitor.SimpleNameVisitor;
+import visitor.methodInfomation;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What calcSim compares of a method: the words of its name and of its Javadoc, the identifiers of its
+ * body and the post-order sequence of its node types.
+ * <p>
+ * A method is parsed once, whatever the number of pairs it takes part in, and its features are kept by
+ * the hash of its body, which holds its name and Javadoc too, so methods that survive an iteration of
+ * extractMethod are not parsed again. Records are immutable and can be shared between threads.
+ */
+final class MethodFeatures {
+
+    // words, identifiers and node types are encoded as ints; the arrays are never written after construction
+    final LCS.Pattern nameWords;
+    /** null when the method has no Javadoc */
+    final LCS.Pattern commentWords;
+    /** the distinct identifiers, sorted */
+    final int[] identifiers;
+    final int[] nodeTypes;
+    final LCS.Pattern nodePattern;
+
+    private MethodFeatures(methodInfomation method, Vocabulary vocabulary) {
+        nameWords = new LCS.Pattern(vocabulary.encode(extractMethod.splitWord(method.name)));
+        commentWords = method.comment.equals("") ? null : new LCS.Pattern(vocabulary.encode(extractMethod.splitWord(Utils.getComment(method.comment))));
+        // the same text calcSim always parsed, so that the identifiers and node types do not change
+        String code = "class test { + \n" + method.body + "\n}";
+        ASTParser parser = Utils.getNewASTParser();
+        parser.setSource(code.toCharArray());
+        CompilationUnit unit = (CompilationUnit) parser.createAST(null);
+        SimpleNameVisitor names = new SimpleNameVisitor();
+        unit.accept(names);
+        PostNodeVisitor nodes = new PostNodeVisitor();
+        unit.accept(nodes);
+        identifiers = new int[names.names.size()];
+        int i = 0;
+        for (String name : names.names) {
+            identifiers[i++] = vocabulary.id(name);
+        }
+        Arrays.sort(identifiers);
+        nodeTypes = new int[nodes.nodes.size()];
+        for (int k = 0; k < nodeTypes.length; k++) {
+            nodeTypes[k] = Integer.parseInt(nodes.nodes.get(k));
+        }
+        nodePattern = new LCS.Pattern(nodeTypes);
+    }
+
+    /**
+     * Features by body hash; the least recently used record is dropped when the cache is full. Each cache
+     * encodes its records with a vocabulary of its own, so only records of the same cache can be compared,
+     * and a cache is kept for one file or one run: extractMethod makes one per file.
+     */
+    static class Cache {
+        private final int capacity;
+        private final Vocabulary vocabulary = new Vocabulary();
+        private final Map<String, MethodFeatures> entries;
+        private long hits;
+        private long misses;
+
+        Cache(int capacity) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MethodFeatures> eldest) {
+                    return size() > Cache.this.capacity;
+                }
+            };
+        }
+
+        MethodFeatures get(methodInfomation method) {
+            String key = InvocationMemo.hash(method.body);
+            synchronized (this) {
+                MethodFeatures features = entries.get(key);
+                if (features != null) {
+                    hits++;
+                    return features;
+                }
+                misses++;
+            }
+            // parsed outside the lock; two threads may parse the same body, and either record will do
+            MethodFeatures features = new MethodFeatures(method, vocabulary);
+            synchronized (this) {
+                entries.put(key, features);
+            }
+            return features;
+        }
+
+        synchronized long getHits() {
+            return hits;
+        }
+
+        synchronized long getMisses() {
+            return misses;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package extract;
+
+import visitor.methodInfomation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Finds the pairs of methods likely to be similar among thousands, without scoring every pair.
+ * <p>
+ * Each method is reduced to a set of shingles: its identifiers and the runs of {@code shingleSize}
+ * consecutive node types of its body, the two feature kinds calcSim compares. A MinHash signature of
+ * {@code bands * rows} values estimates the Jaccard similarity of two such sets, and the signatures are
+ * cut into {@code bands} bands of {@code rows} values: methods equal on one band land in the same bucket
+ * and become a candidate pair. Two methods of Jaccard similarity s are candidates with probability
+ * 1 - (1 - s^rows)^bands, an S-curve whose threshold is near (1/bands)^(1/rows): more bands raise the
+ * recall, more rows the precision. Candidates are meant to be scored exactly with {@link #score}.
+ * <p>
+ * The index is approximate and stands apart from the merge search, which scores its pairs exactly. An
+ * index is filled with {@link #add} and then queried; it is not thread-safe.
+ */
+public class MinHashIndex {
+    private final int bands;
+    private final int rows;
+    private final int shingleSize;
+    private final long[] seeds;
+    private final MethodFeatures.Cache cache;
+    private final List<methodInfomation> methods = new ArrayList<>();
+    private final List<MethodFeatures> features = new ArrayList<>();
+    private final List<long[]> signatures = new ArrayList<>();
+    private final List<Map<Long, List<Integer>>> buckets = new ArrayList<>();
+
+    /**
+     * @param bands       number of bands; more bands find more of the similar pairs
+     * @param rows        values per band; more rows let fewer dissimilar pairs through
+     * @param shingleSize length of the node-type runs
+     * @param seed        seed of the hash functions, so that an index can be rebuilt identically
+     */
+    public MinHashIndex(int bands, int rows, int shingleSize, long seed) {
+        this(bands, rows, shingleSize, seed, new MethodFeatures.Cache(4096));
+    }
+
+    /**
+     * An index taking the features of its methods from the given cache, e.g. the one of the file they
+     * come from.
+     */
+    MinHashIndex(int bands, int rows, int shingleSize, long seed, MethodFeatures.Cache cache) {
+        if (bands < 1 || rows < 1 || shingleSize < 1) {
+            throw new IllegalArgumentException("bands, rows and shingleSize must be positive");
+        }
+        this.bands = bands;
+        this.rows = rows;
+        this.shingleSize = shingleSize;
+        this.cache = cache;
+        this.seeds = new long[bands * rows];
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = random.nextLong();
+        }
+        for (int b = 0; b < bands; b++) {
+            buckets.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * 32 bands of 4 rows and node-type runs of 3: pairs above a Jaccard similarity of about 0.42 are
+     * found with high probability, which keeps most of the pairs calcSim scores above 2.
+     */
+    public MinHashIndex() {
+        this(32, 4, 3, 42);
+    }
+
+    /**
+     * Adds a method to the index.
+     *
+     * @return its id, to be found in the pairs of {@link #candidatePairs}
+     */
+    public int add(methodInfomation method) {
+        int id = methods.size();
+        MethodFeatures feature = cache.get(method);
+        long[] signature = signature(shingles(feature));
+        methods.add(method);
+        features.add(feature);
+        signatures.add(signature);
+        if (signature != null) {
+            for (int b = 0; b < bands; b++) {
+                buckets.get(b).computeIfAbsent(bandKey(signature, b), k -> new ArrayList<>()).add(id);
+            }
+        }
+        return id;
+    }
+
+    public int size() {
+        return methods.size();
+    }
+
+    public methodInfomation get(int id) {
+        return methods.get(id);
+    }
+
+    /**
+     * @return the pairs of ids {i, j}, i < j, that share a bucket in at least one band, sorted
+     */
+    public List<int[]> candidatePairs() {
+        Set<Long> seen = new HashSet<>();
+        for (Map<Long, List<Integer>> band : buckets) {
+            for (List<Integer> bucket : band.values()) {
+                for (int x = 0; x < bucket.size(); x++) {
+                    for (int y = x + 1; y < bucket.size(); y++) {
+                        // ids are added in increasing order, so bucket.get(x) < bucket.get(y)
+                        seen.add((long) bucket.get(x) << 32 | bucket.get(y));
+                    }
+                }
+            }
+        }
+        long[] keys = new long[seen.size()];
+        int k = 0;
+        for (long key : seen) {
+            keys[k++] = key;
+        }
+        Arrays.sort(keys);
+        List<int[]> pairs = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            pairs.add(new int[]{(int) (key >>> 32), (int) key});
+        }
+        return pairs;
+    }
+
+    /**
+     * @return the share of equal signature values, an estimate of the Jaccard similarity of the shingles
+     */
+    public double estimatedJaccard(int i, int j) {
+        long[] a = signatures.get(i), b = signatures.get(j);
+        if (a == null || b == null) {
+            return 0;
+        }
+        int equal = 0;
+        for (int k = 0; k < a.length; k++) {
+            if (a[k] == b[k]) {
+                equal++;
+            }
+        }
+        return (double) equal / a.length;
+    }
+
+    /**
+     * @return the exact calcSim score of two methods of the index
+     */
+    public double score(int i, int j) {
+        return extractMethod.calcSim(features.get(i), features.get(j));
+    }
+
+    private long[] shingles(MethodFeatures feature) {
+        int[] types = feature.nodeTypes;
+        int runs = types.length == 0 ? 0 : Math.max(1, types.length - shingleSize + 1);
+        long[] shingles = new long[feature.identifiers.length + runs];
+        int n = 0;
+        for (int id : feature.identifiers) {
+            shingles[n++] = mix(id);
+        }
+        for (int start = 0; start < runs; start++) {
+            // the two kinds are kept apart by hashing the runs from another starting value
+            long h = 0x9E3779B97F4A7C15L;
+            for (int k = start; k < Math.min(types.length, start + shingleSize); k++) {
+                h = mix(h ^ types[k]);
+            }
+            shingles[n++] = h;
+        }
+        return shingles;
+    }
+
+    /**
+     * @return the MinHash signature of the shingles, or null when there are none
+     */
+    private long[] signature(long[] shingles) {
+        if (shingles.length == 0) {
+            return null;
+        }
+        long[] signature = new long[seeds.length];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        for (long shingle : shingles) {
+            for (int i = 0; i < seeds.length; i++) {
+                long h = mix(shingle ^ seeds[i]);
+                if (h < signature[i]) {
+                    signature[i] = h;
+                }
+            }
+        }
+        return signature;
+    }
+
+    private long bandKey(long[] signature, int band) {
+        long h = band;
+        for (int r = band * rows; r < (band + 1) * rows; r++) {
+            h = mix(h * 31 + signature[r]);
+        }
+        return h;
+    }
+
+    /**
+     * The finalizer of SplitMix64: a cheap hash spreading every input bit over the result.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
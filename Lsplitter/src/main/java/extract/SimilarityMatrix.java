@@ -0,0 +1,195 @@
+package extract;
+
+import visitor.methodInfomation;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
+
+/**
+ * The pairwise calcSim scores of the invocations of one iteration, computed only for the pairs that are
+ * asked for, and at most once each.
+ * <p>
+ * The merge search only scores pairs inside runs of invocations on consecutive lines, so most pairs of a
+ * method with many scattered helpers are never needed. {@link #prefetch} computes the pairs of such runs
+ * on a fork-join pool: the pairs are split recursively at the middle of their estimated cost, the
+ * product of the node counts of the two methods plus their identifier counts, so that a few large
+ * helpers do not leave the other workers idle. {@link #get} returns a score, computing it on the calling
+ * thread if it was not prefetched. A pair's score does not depend on when or where it is computed, so
+ * the scores are those of the serial loop.
+ * <p>
+ * {@link #get} and {@link #prefetch} are meant to be called from one thread.
+ */
+final class SimilarityMatrix {
+    /** below this estimated cost a task computes its pairs itself */
+    static final long SEQUENTIAL_COST = 1L << 16;
+
+    private final List<methodInfomation> methods;
+    private final MethodFeatures.Cache cache;
+    private final ForkJoinPool pool;
+    private final MethodFeatures[] features;
+    private final double[][] sim;
+    private final boolean[][] known;
+    private int computed;
+
+    /**
+     * @param methods the invoked methods, in the order of their invocations
+     * @param cache   the features of the methods of the file
+     */
+    SimilarityMatrix(List<methodInfomation> methods, MethodFeatures.Cache cache, ForkJoinPool pool) {
+        this.methods = methods;
+        this.cache = cache;
+        this.pool = pool;
+        int n = methods.size();
+        features = new MethodFeatures[n];
+        sim = new double[n][n];
+        known = new boolean[n][n];
+    }
+
+    /**
+     * A matrix of known scores, e.g. to benchmark the merge search without methods.
+     */
+    SimilarityMatrix(double[][] scores) {
+        this.methods = List.of();
+        this.cache = null;
+        this.pool = ForkJoinPool.commonPool();
+        int n = scores.length;
+        features = new MethodFeatures[n];
+        sim = new double[n][];
+        known = new boolean[n][n];
+        for (int i = 0; i < n; i++) {
+            sim[i] = scores[i].clone();
+            Arrays.fill(known[i], true);
+        }
+    }
+
+    /**
+     * @return the score of methods i and j, 0 when i == j
+     */
+    double get(int i, int j) {
+        if (i == j) {
+            return 0;
+        }
+        if (!known[i][j]) {
+            set(i, j, extractMethod.calcSim(features(i), features(j)));
+            computed++;
+        }
+        return sim[i][j];
+    }
+
+    /**
+     * Computes in parallel the scores of every pair i < j within each window, where window k spans the
+     * methods k to {@code ends[k]}, both included.
+     */
+    void prefetch(int[] ends) {
+        int n = ends.length;
+        boolean[] used = new boolean[n];
+        int pairs = 0;
+        for (int i = 0, reach = -1; i < n; i++) {
+            // pairs (i, j) for i < j <= the furthest end of the windows starting at or before i
+            reach = Math.max(reach, ends[i]);
+            for (int j = i + 1; j <= reach; j++) {
+                if (!known[i][j]) {
+                    pairs++;
+                    used[i] = used[j] = true;
+                }
+            }
+        }
+        if (pairs == 0) {
+            return;
+        }
+        // the features of the methods taking part, parsed in parallel unless they are cached
+        pool.submit(() -> IntStream.range(0, n).parallel().filter(k -> used[k] && features[k] == null)
+                .forEach(k -> features[k] = cache.get(methods.get(k)))).join();
+        int[] first = new int[pairs];
+        int[] second = new int[pairs];
+        long[] cost = new long[pairs + 1];
+        int p = 0;
+        for (int i = 0, reach = -1; i < n; i++) {
+            reach = Math.max(reach, ends[i]);
+            for (int j = i + 1; j <= reach; j++) {
+                if (!known[i][j]) {
+                    first[p] = i;
+                    second[p] = j;
+                    cost[p + 1] = cost[p] + cost(features[i], features[j]);
+                    p++;
+                }
+            }
+        }
+        PairTask task = new PairTask(first, second, cost, 0, pairs);
+        if (cost[pairs] <= SEQUENTIAL_COST) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+        computed += pairs;
+    }
+
+    /**
+     * @return how many scores have been computed
+     */
+    int getComputed() {
+        return computed;
+    }
+
+    private MethodFeatures features(int i) {
+        if (features[i] == null) {
+            features[i] = cache.get(methods.get(i));
+        }
+        return features[i];
+    }
+
+    private void set(int i, int j, double score) {
+        sim[i][j] = score;
+        sim[j][i] = score;
+        known[i][j] = true;
+        known[j][i] = true;
+    }
+
+    private static long cost(MethodFeatures a, MethodFeatures b) {
+        return (long) a.nodeTypes.length * b.nodeTypes.length / 64 + a.nodeTypes.length + b.nodeTypes.length
+                + a.identifiers.length + b.identifiers.length;
+    }
+
+    private class PairTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] first;
+        private final int[] second;
+        private final long[] cost;
+        private final int from;
+        private final int to;
+
+        PairTask(int[] first, int[] second, long[] cost, int from, int to) {
+            this.first = first;
+            this.second = second;
+            this.cost = cost;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1 || cost[to] - cost[from] <= SEQUENTIAL_COST) {
+                for (int p = from; p < to; p++) {
+                    // every pair belongs to exactly one task, so the cells need no locking
+                    set(first[p], second[p], extractMethod.calcSim(features[first[p]], features[second[p]]));
+                }
+                return;
+            }
+            // split where half of the cost is done
+            long half = cost[from] + (cost[to] - cost[from]) / 2;
+            int lo = from + 1, hi = to - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cost[mid] < half) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            invokeAll(new PairTask(first, second, cost, from, lo), new PairTask(first, second, cost, lo, to));
+        }
+    }
+}
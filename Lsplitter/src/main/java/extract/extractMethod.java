@@ -1,56 +1,115 @@
 package extract;
 
-import chatGPT.queryGPT;
+import chatGPT.Answer;
+import chatGPT.AnswerCache;
+import chatGPT.EndpointPool;
+import chatGPT.Tokens;
 import chatGPT.queryGPT4;
 import gr.uom.java.xmi.diff.ExtractOperationRefactoring;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.compiler.IProblem;
 import org.eclipse.jdt.core.dom.*;
 import org.jetbrains.annotations.NotNull;
-import org.refactoringminer.api.GitHistoryRefactoringMiner;
 import org.refactoringminer.api.Refactoring;
-import org.refactoringminer.api.RefactoringHandler;
-import org.refactoringminer.api.RefactoringType;
-import org.refactoringminer.rm1.GitHistoryRefactoringMinerImpl;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
+import util.LCS;
+import util.Metrics;
 import util.Utils;
 import util.changeInfomation;
 import visitor.*;
 
-class lineAndInvocation {
-    public int line;
-    public String InvocationName;
-    public int startPostion, endPostion;
-    public List<String> arguments;
-    public lineAndInvocation(int line, String InvocationName, int startPostion, int endPostion) {
-        this.line = line;
-        this.InvocationName = InvocationName;
-        this.startPostion = startPostion;
-        this.endPostion = endPostion;
-        this.arguments = new ArrayList<String>();
-    }
-}
 public class extractMethod {
     String oldMethod;
     String apiKey;
     String apiUrl;
+    EndpointPool pool;
+    String name;
+    Metrics metrics = Metrics.getDefault();
+    Metrics.FileRecord file;
     String gptMethod;
     String resMethod;
+    AnswerCache cache;
+    int chunkTokens;
+    boolean verifyInvocations;
+    ForkJoinPool similarityPool = ForkJoinPool.commonPool();
     public extractMethod(File oldMethod, String apiKey, String apiUrl, File gptMethod) throws IOException {
+        this(oldMethod, EndpointPool.single(apiKey, apiUrl), gptMethod);
         this.apiKey = apiKey;
         this.apiUrl = apiUrl;
+    }
+    /**
+     * Send all prompts through the given endpoints instead of a single account.
+     */
+    public extractMethod(File oldMethod, EndpointPool pool, File gptMethod) throws IOException {
+        this.pool = pool;
+        this.name = oldMethod.getName();
         this.oldMethod = Utils.readFromFile(oldMethod);
         this.gptMethod = Utils.readFromFile(gptMethod);
         this.resMethod = null;
     }
+    /**
+     * Answer LLM prompts from the given cache when possible, and record new answers in it.
+     */
+    public void setCache(AnswerCache cache) {
+        this.cache = cache;
+    }
+    /**
+     * Methods with more tokens than this are decomposed in fragments of at most this many tokens,
+     * so that each reply fits in the output budget of a single prompt. 0, the default, sends every
+     * method in one prompt, as the saved answers were produced.
+     */
+    public void setChunkTokens(int chunkTokens) {
+        this.chunkTokens = chunkTokens;
+    }
+    /**
+     * Detect the invocations of every version again, even when they could be carried over from the last
+     * one, and count the versions where the two disagree as {@code indexMismatches}.
+     */
+    public void setVerifyInvocations(boolean verifyInvocations) {
+        this.verifyInvocations = verifyInvocations;
+    }
+    /**
+     * Compute the similarities of the helpers on the given pool instead of the common one.
+     */
+    public void setSimilarityPool(ForkJoinPool similarityPool) {
+        this.similarityPool = similarityPool;
+    }
+    /**
+     * Report stage timings, tokens and iterations to the given metrics instead of {@link Metrics#getDefault()}.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
     public void getExtractedMethod() throws InterruptedException {
+        file = new Metrics.FileRecord(name);
+        long begin = metrics.start();
+        try {
+            extract();
+        } catch (InterruptedException | RuntimeException e) {
+            file.failed = true;
+            throw e;
+        } finally {
+            file.millis = (System.nanoTime() - begin) / 1_000_000;
+            metrics.record(Metrics.FILE, begin);
+            metrics.addFile(file);
+        }
+    }
+    private void extract() throws InterruptedException {
         String newMethod = gptMethod;
         String oldMethod = this.oldMethod;
-        if (newMethod == null) {
+        if (newMethod == null && ChunkedDecomposer.needsChunking(oldMethod, chunkTokens)) {
+            newMethod = new ChunkedDecomposer(chunkTokens, prompt -> queryAsync(prompt, 0)).decompose(oldMethod);
+        } else if (newMethod == null) {
             String promot = "Suppose you are a skilled software engineer and now you should refactor your code. Please decompose the following long method into small ones, but do not modify the signature of the original method. Please give me the full resulting methods with comment for each method in Javadoc format. The new methods should have unique method names. Please avoid tiny methods, empty methods, or new classes. Don't generate code summary.\n";
-            String res = queryGPT4.query(apiKey, apiUrl, promot + "```java\n" + oldMethod.trim() + "\n```\n");
+            String res = query(promot + "```java\n" + oldMethod.trim() + "\n```\n");
             // System.out.println("ChatGPT REPLY:\n" + res);
             newMethod = Utils.getCodeFromAnswer(res);
         }
@@ -58,149 +117,100 @@ public class extractMethod {
         newMethod = Utils.removeEmptyLines(newMethod);
         gptMethod = newMethod;
         oldMethod = "class test {\n" + oldMethod + "\n}\n";
+        ExtractMethodDetector detector = new ExtractMethodDetector(oldMethod);
+        InvocationIndex index = null;
+        // one per file, so that its vocabulary does not outlive the file
+        MethodFeatures.Cache features = new MethodFeatures.Cache(4096);
         while (true) {
+            file.mergeIterations.incrementAndGet();
             newMethod = "class test {\n" + newMethod + "\n}\n";
-            //  remove empty methods
-            List<Refactoring> extractedMethods = getExtractedMethods(oldMethod, newMethod);
-            // get all methods and these comment
-            Map<String, methodInfomation> methods = getNameToComment(newMethod);
-            List<lineAndInvocation> invocations = new ArrayList<>();
-            for (int j = 0; j < extractedMethods.size(); j++) {
-                ExtractOperationRefactoring ref = (ExtractOperationRefactoring)extractedMethods.get(j);
-                if (j > 0) {
-                    ExtractOperationRefactoring lastref = (ExtractOperationRefactoring) extractedMethods.get(j - 1);
-                    if (ref.getExtractedOperationInvocations().get(0).getName().equals(lastref.getExtractedOperationInvocations().get(0).getName())) {
-                        continue;
-                    }
-                }
-                if (j < extractedMethods.size() - 1) {
-                    ExtractOperationRefactoring afterref = (ExtractOperationRefactoring) extractedMethods.get(j + 1);
-                    if (ref.getExtractedOperationInvocations().get(0).getName().equals(afterref.getExtractedOperationInvocations().get(0).getName())) {
-                        continue;
-                    }
-                }
-                if (ref.getExtractedOperationInvocations().size() == 1) {
-                    invocations.add(new lineAndInvocation(ref.getExtractedOperationInvocations().get(0).getLocationInfo().getStartLine(),
-                            ref.getExtractedOperationInvocations().get(0).getName(), ref.getExtractedOperationInvocations().get(0).getLocationInfo().getStartOffset(),
-                            ref.getExtractedOperationInvocations().get(0).getLocationInfo().getEndOffset()));
-                    for (int i = 0; i < ref.getExtractedOperationInvocations().get(0).arguments().size(); i++) {
-                        invocations.get(invocations.size() - 1).arguments.add(ref.getExtractedOperationInvocations().get(0).arguments().get(i).toString());
-                    }
-                }
-            }
-            Collections.sort(invocations, Comparator.comparingInt(x -> x.line));
-            int n = invocations.size();
-            double[][] sim = new double[n][n];
-            for (int i = 0; i < invocations.size(); i++) {
-                for (int j = i + 1; j < invocations.size(); j++) {
-                    sim[i][j] = calcSim(methods.get(invocations.get(i).InvocationName), methods.get(invocations.get(j).InvocationName));
-                    sim[j][i] = sim[i][j];
-                }
-            }
-
-            double curBest = 0; int st = -1, en = -1;
-            for (int i = 0; i < invocations.size(); i++) {
-                int totNCSS = countNCSS(methods.get(invocations.get(i).InvocationName).body);
-                for (int j = i + 1; j < invocations.size(); j++) {
-                    if (invocations.get(j).line != invocations.get(j - 1).line + 1) break;
-                    totNCSS += countNCSS(methods.get(invocations.get(j).InvocationName).body);
-                    if (totNCSS >= 60) break;
-                    double tot = 0;
-                    // i ~ j
-                    for (int k = i; k <= j; k++) {
-                        for (int t = k + 1; t <= j; t++) {
-                            tot += sim[k][t];
-                        }
-                    }
-                    tot /= (j - i + 1) * (j - i) / 2.0;
-                    if (tot > curBest) {
-                        curBest = tot;
-                        st = i; en = j + 1;
-                    }
-                }
+            //  remove empty methods, get all methods and these comment
+            InvocationIndex current = getIndex(detector, newMethod, index);
+            List<lineAndInvocation> invocations = current.invocations;
+            Map<String, methodInfomation> methods = current.methods;
+            long begin = metrics.start();
+            List<methodInfomation> invoked = new ArrayList<>();
+            for (lineAndInvocation invocation : invocations) {
+                invoked.add(methods.get(invocation.InvocationName));
             }
+            SimilarityMatrix sim = new SimilarityMatrix(invoked, features, similarityPool);
+            List<int[]> ranges = selectMergeRanges(invocations, methods, sim);
+            metrics.record(Metrics.CALC_SIM, begin);
+            metrics.add("similarityPairs", sim.getComputed());
+            metrics.add("similarityPairsSkipped", invocations.size() * (invocations.size() - 1) / 2 - sim.getComputed());
 
             List<changeInfomation> changes = new ArrayList<>();
             List<String> addCodes = new ArrayList<>();
-            if (curBest > 2) {
+            if (!ranges.isEmpty()) {
                 System.out.println("Use MERGE METHODS");
-                List<methodInfomation> mergeMethods = new ArrayList<>();
-                StringBuilder methodTot = new StringBuilder();
-                StringBuilder invocationTot = new StringBuilder();
-                for (int i = st; i < en; i++) {
-                    lineAndInvocation invocation = invocations.get(i);
-                    methodInfomation minfo = methods.get(invocation.InvocationName);
-                    methodTot.append(minfo.body.trim()).append("\n");
-                    invocationTot.append(newMethod.substring(invocation.startPostion, invocation.endPostion + 1)).append("\n");
+                List<CompletableFuture<String[]>> answers = new ArrayList<>();
+                for (int[] range : ranges) {
+                    StringBuilder methodTot = new StringBuilder();
+                    StringBuilder invocationTot = new StringBuilder();
+                    for (int i = range[0]; i < range[1]; i++) {
+                        lineAndInvocation invocation = invocations.get(i);
+                        methodInfomation minfo = methods.get(invocation.InvocationName);
+                        methodTot.append(minfo.body.trim()).append("\n");
+                        invocationTot.append(newMethod.substring(invocation.startPostion, invocation.endPostion + 1)).append("\n");
+                    }
+                    answers.add(mergeCombinedAsync(methodTot.toString(), invocationTot.toString()));
                 }
-                String promotMerge = "Suppose you are a skilled software engineer and now you should refactor your code. Now here are some java methods, please merge them into one method. Don't generate code summary. Only give me the new method.\nHere we present the to-be-merged methods in markdown format.\n";
-                String resMerge = queryGPT4.query(apiKey, apiUrl, promotMerge + "```java\n" + methodTot.toString().trim() + "\n```\n");
-                String mergedMethod = Utils.getCodeFromAnswer(resMerge);
-                mergedMethod = Utils.removeEmptyLines(mergedMethod);
-                String promotInvocation1 = "Suppose you are a skilled software engineer and now you should refactor your code. You have merged these methods into one method. Here we present the old methods in markdown format.\n";
-                String promotInvocation2 = "You merge them into this method. Here we present the merged methods in markdown format.\n";
-                String promotInvocation3 = "Now please give me the new method invocation for it. The original method invocations are:\n";
-                String promotInvocation4 = "Don't generate code summary. Only give me the new method invocation.";
-                String resInvoation = queryGPT4.query(apiKey, apiUrl, promotInvocation1 + "```java\n" + methodTot.toString().trim() + "\n```\n" + promotInvocation2 +
-                        "```java\n" + mergedMethod.trim() + "\n```\n" + promotInvocation3 + "```java\n" + invocationTot.toString().trim() + "\n```\n" + promotInvocation4);
-                String mergedInvocation = Utils.getCodeFromAnswer(resInvoation);
-                mergedInvocation = Utils.removeEmptyLines(mergedInvocation);
-                addCodes.add(mergedMethod);
-                changes.add(new changeInfomation(invocations.get(st).startPostion, invocations.get(en - 1).endPostion + 1, mergedInvocation));
-                for (int i = st; i < en; i++) {
-                    methodInfomation minfo = methods.get(invocations.get(i).InvocationName);
-                    changes.add(new changeInfomation(minfo.startPosition, minfo.endPosition, ""));
+                Set<String> added = new HashSet<>();
+                for (int r = 0; r < ranges.size(); r++) {
+                    int st = ranges.get(r)[0], en = ranges.get(r)[1];
+                    String[] merged = join(answers.get(r));
+                    String mergedMethod = merged[0];
+                    String mergedInvocation = merged[1];
+                    // the best range is always merged; a later one whose new name clashes waits for the next iteration
+                    Set<String> names = getNameToComment("class test {\n" + mergedMethod + "\n}\n").keySet();
+                    Set<String> own = new HashSet<>();
+                    for (int i = st; i < en; i++) {
+                        own.add(invocations.get(i).InvocationName);
+                    }
+                    if (r > 0 && names.stream().anyMatch(name -> added.contains(name) || methods.containsKey(name) && !own.contains(name))) {
+                        continue;
+                    }
+                    added.addAll(names);
+                    addCodes.add(mergedMethod);
+                    changes.add(new changeInfomation(invocations.get(st).startPostion, invocations.get(en - 1).endPostion + 1, mergedInvocation));
+                    for (int i = st; i < en; i++) {
+                        methodInfomation minfo = methods.get(invocations.get(i).InvocationName);
+                        changes.add(new changeInfomation(minfo.startPosition, minfo.endPosition, ""));
+                    }
                 }
             } else {
                 newMethod = newMethod.substring(newMethod.indexOf("{") + 1, newMethod.lastIndexOf("}"));
+                index = current.apply(changes, addCodes);
                 break;
             }
+            begin = metrics.start();
+            index = current.apply(changes, addCodes);
             newMethod = Utils.changeString(newMethod, changes);
             newMethod = newMethod.substring(newMethod.indexOf("{") + 1, newMethod.lastIndexOf("}"));
             for (String add: addCodes) {
                 newMethod += "\n" + add + "\n";
             }
+            metrics.record(Metrics.REWRITE, begin);
         }
         while (true) {
+            file.inlineIterations.incrementAndGet();
             newMethod = "class test {\n" + newMethod + "\n}\n";
-            //  remove empty methods
-            List<Refactoring> extractedMethods = getExtractedMethods(oldMethod, newMethod);
-            // get all method and these comment
-            Map<String, methodInfomation> methods = getNameToComment(newMethod);
-            List<lineAndInvocation> invocations = new ArrayList<>();
-            for (int j = 0; j < extractedMethods.size(); j++) {
-                ExtractOperationRefactoring ref = (ExtractOperationRefactoring) extractedMethods.get(j);
-                if (j > 0) {
-                    ExtractOperationRefactoring lastref = (ExtractOperationRefactoring) extractedMethods.get(j - 1);
-                    if (ref.getExtractedOperationInvocations().get(0).getName().equals(lastref.getExtractedOperationInvocations().get(0).getName())) {
-                        continue;
-                    }
-                }
-                if (j < extractedMethods.size() - 1) {
-                    ExtractOperationRefactoring afterref = (ExtractOperationRefactoring) extractedMethods.get(j + 1);
-                    if (ref.getExtractedOperationInvocations().get(0).getName().equals(afterref.getExtractedOperationInvocations().get(0).getName())) {
-                        continue;
-                    }
-                }
-                if (ref.getExtractedOperationInvocations().size() == 1) {
-                    invocations.add(new lineAndInvocation(ref.getExtractedOperationInvocations().get(0).getLocationInfo().getStartLine(),
-                            ref.getExtractedOperationInvocations().get(0).getName(), ref.getExtractedOperationInvocations().get(0).getLocationInfo().getStartOffset(),
-                            ref.getExtractedOperationInvocations().get(0).getLocationInfo().getEndOffset()));
-                    for (int i = 0; i < ref.getExtractedOperationInvocations().get(0).arguments().size(); i++) {
-                        invocations.get(invocations.size() - 1).arguments.add(ref.getExtractedOperationInvocations().get(0).arguments().get(i).toString());
-                    }
-                }
-            }
-            Collections.sort(invocations, Comparator.comparingInt(x -> x.line));
+            //  remove empty methods, get all method and these comment
+            InvocationIndex current = getIndex(detector, newMethod, index);
+            List<lineAndInvocation> invocations = current.invocations;
+            Map<String, methodInfomation> methods = current.methods;
+            long begin;
             List<changeInfomation> changes = new ArrayList<>();
             List<String> addCodes = new ArrayList<>();
             for (int i = 0; i < invocations.size(); i++) {
                 methodInfomation methodInfo = methods.get(invocations.get(i).InvocationName);
+                begin = metrics.start();
                 ASTParser parser = ASTParser.newParser(AST.JLS19);
                 parser.setSource(methodInfo.body.toCharArray());
                 parser.setKind(ASTParser.K_CLASS_BODY_DECLARATIONS);
 
                 TypeDeclaration typeDeclaration = (TypeDeclaration) parser.createAST(null);
+                metrics.record(Metrics.JDT_PARSE, begin);
                 MethodDeclaration[] methodDeclaration = typeDeclaration.getMethods();
                 MethodDeclaration md = methodDeclaration[0];
                 if (md.getReturnType2().toString().equals("void")) {
@@ -227,17 +237,408 @@ public class extractMethod {
                 newMethod = newMethod.substring(newMethod.indexOf("{") + 1, newMethod.lastIndexOf("}"));
                 break;
             }
+            begin = metrics.start();
+            index = current.apply(changes, addCodes);
             newMethod = Utils.changeString(newMethod, changes);
             newMethod = newMethod.substring(newMethod.indexOf("{") + 1, newMethod.lastIndexOf("}"));
             for (String add : addCodes) {
                 newMethod += "\n" + add + "\n";
             }
+            metrics.record(Metrics.REWRITE, begin);
         }
         resMethod = newMethod;
 //        newMethod = "class test {\n" + newMethod + "\n}\n";
 //        newMethod = Utils.formatCode(newMethod);
 //        return newMethod.substring(newMethod.indexOf("{") + 1, newMethod.lastIndexOf("}"));
     }
+    /**
+     * The invocations and methods of {@code newMethod}: those of the last iteration carried through its
+     * edits when they apply to this text, detected from scratch otherwise. With verification on, the
+     * carried ones are checked against a detection and the detected ones win.
+     */
+    private InvocationIndex getIndex(ExtractMethodDetector detector, String newMethod, InvocationIndex last) {
+        if (last != null && last.text.equals(newMethod)) {
+            metrics.add("indexedVersions", 1);
+            if (!verifyInvocations) {
+                return last;
+            }
+            InvocationIndex detected = detectIndex(detector, newMethod);
+            if (!last.matches(detected.invocations, detected.methods)) {
+                metrics.add("indexMismatches", 1);
+                System.out.println("INVOCATION INDEX MISMATCH");
+            }
+            return detected;
+        }
+        return detectIndex(detector, newMethod);
+    }
+    private InvocationIndex detectIndex(ExtractMethodDetector detector, String newMethod) {
+        List<lineAndInvocation> invocations = getInvocations(detector, newMethod);
+        long begin = metrics.start();
+        Map<String, methodInfomation> methods = getNameToComment(newMethod);
+        metrics.record(Metrics.JDT_PARSE, begin);
+        return new InvocationIndex(newMethod, invocations, methods);
+    }
+    /**
+     * The invocations of extracted methods in {@code newMethod}, sorted by line. Each one is the only
+     * invocation of its method, and methods extracted twice in a row are left out. Known pairs of
+     * texts are answered by {@link InvocationMemo} without running RefactoringMiner.
+     */
+    private List<lineAndInvocation> getInvocations(ExtractMethodDetector detector, String newMethod) {
+        String newHash = InvocationMemo.hash(newMethod);
+        List<lineAndInvocation> memo = InvocationMemo.shared.get(detector.oldMethodHash, newHash);
+        if (memo != null) {
+            metrics.add("detectionMemoHits", 1);
+            return memo;
+        }
+        long begin = metrics.start();
+        List<lineAndInvocation> invocations = detector.detectByAst(newMethod);
+        metrics.record(Metrics.AST_DETECTION, begin);
+        if (invocations != null) {
+            metrics.add("astDetections", 1);
+            InvocationMemo.shared.put(detector.oldMethodHash, newHash, invocations);
+            return invocations;
+        }
+        begin = metrics.start();
+        List<Refactoring> extractedMethods = detector.detect(newMethod);
+        metrics.record(Metrics.REFACTORING_MINER, begin);
+        invocations = new ArrayList<>();
+        for (int j = 0; j < extractedMethods.size(); j++) {
+            ExtractOperationRefactoring ref = (ExtractOperationRefactoring)extractedMethods.get(j);
+            if (j > 0) {
+                ExtractOperationRefactoring lastref = (ExtractOperationRefactoring) extractedMethods.get(j - 1);
+                if (ref.getExtractedOperationInvocations().get(0).getName().equals(lastref.getExtractedOperationInvocations().get(0).getName())) {
+                    continue;
+                }
+            }
+            if (j < extractedMethods.size() - 1) {
+                ExtractOperationRefactoring afterref = (ExtractOperationRefactoring) extractedMethods.get(j + 1);
+                if (ref.getExtractedOperationInvocations().get(0).getName().equals(afterref.getExtractedOperationInvocations().get(0).getName())) {
+                    continue;
+                }
+            }
+            if (ref.getExtractedOperationInvocations().size() == 1) {
+                invocations.add(new lineAndInvocation(ref.getExtractedOperationInvocations().get(0).getLocationInfo().getStartLine(),
+                        ref.getExtractedOperationInvocations().get(0).getName(), ref.getExtractedOperationInvocations().get(0).getLocationInfo().getStartOffset(),
+                        ref.getExtractedOperationInvocations().get(0).getLocationInfo().getEndOffset()));
+                for (int i = 0; i < ref.getExtractedOperationInvocations().get(0).arguments().size(); i++) {
+                    invocations.get(invocations.size() - 1).arguments.add(ref.getExtractedOperationInvocations().get(0).arguments().get(i).toString());
+                }
+            }
+        }
+        Collections.sort(invocations, Comparator.comparingInt(x -> x.line));
+        InvocationMemo.shared.put(detector.oldMethodHash, newHash, invocations);
+        return invocations;
+    }
+    /**
+     * Find the runs of consecutive invocations whose methods are similar enough to be merged.
+     * Every run of at least two invocations on consecutive lines whose methods have fewer than 60
+     * NCSS in total is scored with the average pairwise similarity; runs scoring above 2 are taken
+     * greedily from the best one, skipping runs that overlap a taken one.
+     * Only the similarities of pairs inside such runs are computed.
+     * @return the [start, end) indices of the runs to merge, best first
+     */
+    List<int[]> selectMergeRanges(List<lineAndInvocation> invocations, Map<String, methodInfomation> methods, SimilarityMatrix sim) {
+        int[] lines = new int[invocations.size()];
+        int[] ncss = new int[invocations.size()];
+        for (int i = 0; i < invocations.size(); i++) {
+            lines[i] = invocations.get(i).line;
+            ncss[i] = countNCSS(methods.get(invocations.get(i).InvocationName).body);
+        }
+        int[] ends = runEnds(lines, ncss);
+        sim.prefetch(ends);
+        List<double[]> candidates = scoreRuns(ends, sim);
+        List<int[]> ranges = new ArrayList<>();
+        boolean[] taken = new boolean[invocations.size()];
+        Set<String> names = new HashSet<>();
+        for (double[] candidate : candidates) {
+            int st = (int) candidate[1], en = (int) candidate[2];
+            boolean free = true;
+            for (int i = st; i < en && free; i++) {
+                free = !taken[i] && !names.contains(invocations.get(i).InvocationName);
+            }
+            if (!free) {
+                continue;
+            }
+            for (int i = st; i < en; i++) {
+                taken[i] = true;
+                names.add(invocations.get(i).InvocationName);
+            }
+            ranges.add(new int[]{st, en});
+        }
+        return ranges;
+    }
+    /**
+     * @return for each invocation i, the last invocation j of the longest run starting at i: on
+     * consecutive lines, with fewer than 60 NCSS in total; i itself when there is no such run
+     */
+    static int[] runEnds(int[] lines, int[] ncss) {
+        int[] ends = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            int totNCSS = ncss[i];
+            ends[i] = i;
+            for (int j = i + 1; j < lines.length; j++) {
+                if (lines[j] != lines[j - 1] + 1) break;
+                totNCSS += ncss[j];
+                if (totNCSS >= 60) break;
+                ends[i] = j;
+            }
+        }
+        return ends;
+    }
+    /**
+     * Scores every run [i, j] with i < j <= ends[i] by the average similarity of its pairs.
+     * <p>
+     * The sum of a run is the sum of the run one shorter plus the column of its last invocation, and the
+     * columns are kept for descending i, so all runs are scored in O(n^2) instead of O(n^4).
+     * @return {score, start, end} of the runs scoring above 2, with end exclusive, in the order of {@link #rankRuns}
+     */
+    static List<double[]> scoreRuns(int[] ends, SimilarityMatrix sim) {
+        int n = ends.length;
+        List<double[]> scored = new ArrayList<>();
+        // column[j]: the sum of sim(k, j) for i <= k < j
+        double[] column = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            double tot = 0;
+            for (int j = i + 1; j <= ends[i]; j++) {
+                column[j] += sim.get(i, j);
+                tot += column[j];
+                double score = tot / ((j - i + 1) * (j - i) / 2.0);
+                if (score > 2 - EPSILON * 2) {
+                    scored.add(new double[]{score, i, j + 1});
+                }
+            }
+        }
+        return rankRuns(scored, sim);
+    }
+    /**
+     * Orders scored runs as the merge search takes them: best score first; on ties the earlier and then
+     * the shorter run, as the single best search picked it.
+     * <p>
+     * Summing the pairs of a run in another order may change the last bits of its score, and the single
+     * best search compared the sums of {@link #scoreRun} strictly. So the scores within EPSILON of 2 or
+     * of another score are computed again by {@link #scoreRun}, and the runs are taken exactly as that
+     * search took them. Only near ties are summed again, each in O(length^2); runs are at most 60 NCSS
+     * long, so this stays small unless many helpers without statements score alike.
+     * @return the runs scoring above 2
+     */
+    static List<double[]> rankRuns(List<double[]> scored, SimilarityMatrix sim) {
+        scored.sort((a, b) -> Double.compare(b[0], a[0]));
+        for (int c = 0; c < scored.size(); c++) {
+            double score = scored.get(c)[0];
+            boolean close = Math.abs(score - 2) <= EPSILON * 2
+                    || c > 0 && scored.get(c - 1)[0] - score <= EPSILON * score
+                    || c + 1 < scored.size() && score - scored.get(c + 1)[0] <= EPSILON * score;
+            if (close) {
+                scored.get(c)[0] = scoreRun(sim, (int) scored.get(c)[1], (int) scored.get(c)[2] - 1);
+            }
+        }
+        List<double[]> candidates = new ArrayList<>();
+        for (double[] run : scored) {
+            if (run[0] > 2) {
+                candidates.add(run);
+            }
+        }
+        candidates.sort((a, b) -> a[0] != b[0] ? Double.compare(b[0], a[0]) : a[1] != b[1] ? Double.compare(a[1], b[1]) : Double.compare(a[2], b[2]));
+        return candidates;
+    }
+    /** far above the rounding error of the sums, far below the gaps between different scores */
+    private static final double EPSILON = 1e-9;
+    /**
+     * @return the average similarity of the pairs of the run [i, j], summed pair by pair
+     */
+    static double scoreRun(SimilarityMatrix sim, int i, int j) {
+        double tot = 0;
+        // i ~ j
+        for (int k = i; k <= j; k++) {
+            for (int t = k + 1; t <= j; t++) {
+                tot += sim.get(k, t);
+            }
+        }
+        tot /= (j - i + 1) * (j - i) / 2.0;
+        return tot;
+    }
+    /**
+     * Ask for the merged method and its invocation in one prompt. When the reply does not hold a single
+     * method and an invocation of it, fall back to {@link #mergeAsync}.
+     * @return the merged method and the invocation replacing the old ones
+     */
+    private CompletableFuture<String[]> mergeCombinedAsync(String methodTot, String invocationTot) {
+        String promotMerge = "Suppose you are a skilled software engineer and now you should refactor your code. Now here are some java methods, please merge them into one method, then give me the new method invocation that replaces their original invocations. Don't generate code summary. Only give me two code blocks in markdown format: first the new method, then the new method invocation.\nHere we present the to-be-merged methods in markdown format.\n";
+        String promotInvocation = "The original method invocations are:\n";
+        return queryAsync(promotMerge + "```java\n" + methodTot.trim() + "\n```\n" + promotInvocation + "```java\n" + invocationTot.trim() + "\n```\n", 2)
+                .thenCompose(res -> {
+                    long begin = metrics.start();
+                    String[] merged = parseMergeAnswer(res);
+                    metrics.record(Metrics.JDT_PARSE, begin);
+                    if (merged != null) {
+                        return CompletableFuture.completedFuture(merged);
+                    }
+                    System.out.println("MERGE ANSWER INVALID, ASK IN TWO STEPS");
+                    return mergeAsync(methodTot, invocationTot);
+                });
+    }
+    /**
+     * @return the merged method and its invocation, or null unless the first code block is exactly one
+     * method and the second one parses as statements calling it
+     */
+    static String[] parseMergeAnswer(String answer) {
+        List<String> blocks = Utils.getCodeBlocksFromAnswer(answer);
+        if (blocks.size() < 2) {
+            return null;
+        }
+        CompilationUnit unit = parseUnit("class test {\n" + blocks.get(0) + "\n}\n");
+        if (hasErrors(unit) || unit.types().size() != 1) {
+            return null;
+        }
+        TypeDeclaration type = (TypeDeclaration) unit.types().get(0);
+        if (type.bodyDeclarations().size() != 1 || type.getMethods().length != 1) {
+            return null;
+        }
+        String name = type.getMethods()[0].getName().getIdentifier();
+        unit = parseUnit("class test {\nvoid test() {\n" + blocks.get(1) + "\n}\n}\n");
+        if (hasErrors(unit)) {
+            return null;
+        }
+        boolean[] called = new boolean[1];
+        unit.accept(new ASTVisitor() {
+            @Override
+            public boolean visit(MethodInvocation node) {
+                called[0] |= node.getName().getIdentifier().equals(name);
+                return true;
+            }
+        });
+        if (!called[0]) {
+            return null;
+        }
+        return new String[]{Utils.removeEmptyLines(blocks.get(0)), Utils.removeEmptyLines(blocks.get(1))};
+    }
+    private static CompilationUnit parseUnit(String code) {
+        ASTParser parser = Utils.getNewASTParser();
+        // without options the parser reports generics, lambdas etc. as errors
+        Map<String, String> options = JavaCore.getOptions();
+        JavaCore.setComplianceOptions(JavaCore.VERSION_17, options);
+        parser.setCompilerOptions(options);
+        parser.setSource(code.toCharArray());
+        return (CompilationUnit) parser.createAST(null);
+    }
+    private static boolean hasErrors(CompilationUnit unit) {
+        for (IProblem problem : unit.getProblems()) {
+            if (problem.isError()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Ask for the merged method, then for its invocation.
+     * @return the merged method and the invocation replacing the old ones
+     */
+    private CompletableFuture<String[]> mergeAsync(String methodTot, String invocationTot) {
+        String promotMerge = "Suppose you are a skilled software engineer and now you should refactor your code. Now here are some java methods, please merge them into one method. Don't generate code summary. Only give me the new method.\nHere we present the to-be-merged methods in markdown format.\n";
+        return queryAsync(promotMerge + "```java\n" + methodTot.trim() + "\n```\n").thenCompose(resMerge -> {
+            String mergedMethod = Utils.getCodeFromAnswer(resMerge);
+            mergedMethod = Utils.removeEmptyLines(mergedMethod);
+            String promotInvocation1 = "Suppose you are a skilled software engineer and now you should refactor your code. You have merged these methods into one method. Here we present the old methods in markdown format.\n";
+            String promotInvocation2 = "You merge them into this method. Here we present the merged methods in markdown format.\n";
+            String promotInvocation3 = "Now please give me the new method invocation for it. The original method invocations are:\n";
+            String promotInvocation4 = "Don't generate code summary. Only give me the new method invocation.";
+            String method = mergedMethod;
+            return queryAsync(promotInvocation1 + "```java\n" + methodTot.trim() + "\n```\n" + promotInvocation2 +
+                    "```java\n" + mergedMethod.trim() + "\n```\n" + promotInvocation3 + "```java\n" + invocationTot.trim() + "\n```\n" + promotInvocation4)
+                    .thenApply(resInvoation -> {
+                        String mergedInvocation = Utils.getCodeFromAnswer(resInvoation);
+                        mergedInvocation = Utils.removeEmptyLines(mergedInvocation);
+                        return new String[]{method, mergedInvocation};
+                    });
+        });
+    }
+    /**
+     * The merge and invocation prompts ask for a single code block.
+     */
+    private CompletableFuture<String> queryAsync(String prompt) {
+        return queryAsync(prompt, 1);
+    }
+    /**
+     * @param codeBlocks number of code blocks the prompt asks for, 0 when the code may come in several
+     */
+    private CompletableFuture<String> queryAsync(String prompt, int codeBlocks) {
+        long begin = metrics.start();
+        String answer = lookup(prompt);
+        if (answer != null) {
+            return CompletableFuture.completedFuture(answer);
+        }
+        return queryGPT4.askAsync(pool, prompt, codeBlocks).thenApply(res -> answered(prompt, res, begin));
+    }
+    /**
+     * Waits for a future and throws what failed it: a QueryException as it is, not wrapped.
+     */
+    static <T> T join(CompletableFuture<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+    /**
+     * Count an answer received from the LLM, and cache it under the model that gave it.
+     */
+    private String answered(String prompt, Answer answer, long begin) {
+        metrics.record(Metrics.LLM, begin);
+        long promptTokens = Tokens.countPrompt(answer.model, prompt);
+        long completionTokens = Tokens.count(answer.model, answer.text);
+        metrics.add("prompts", 1);
+        metrics.add("promptTokens", promptTokens);
+        metrics.add("completionTokens", completionTokens);
+        file.prompts.incrementAndGet();
+        file.promptTokens.addAndGet(promptTokens);
+        file.completionTokens.addAndGet(completionTokens);
+        if (cache != null) {
+            try {
+                cache.put(cacheKey(answer.model, prompt), answer.text);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return answer.text;
+    }
+    /**
+     * @return the cached answer of one of the models of the pool, or null
+     */
+    private String lookup(String prompt) {
+        if (cache == null) {
+            return null;
+        }
+        for (String model : pool.getModels()) {
+            try {
+                String answer = cache.get(cacheKey(model, prompt));
+                if (answer != null) {
+                    metrics.add("cachedPrompts", 1);
+                    file.cachedPrompts.incrementAndGet();
+                    return answer;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+    private static byte[] cacheKey(String model, String prompt) {
+        return AnswerCache.key(model, queryGPT4.TEMPERATURE, queryGPT4.MAX_TOKENS, prompt, AnswerCache.TOOL_VERSION);
+    }
+    private String query(String prompt) throws InterruptedException {
+        long begin = metrics.start();
+        String answer = lookup(prompt);
+        if (answer != null) {
+            return answer;
+        }
+        return answered(prompt, queryGPT4.ask(pool, prompt, 0), begin);
+    }
     private int countNCSS(String methodBody) {
         int cnt = 0;
         for (char ch: methodBody.toCharArray()) {
@@ -247,57 +648,42 @@ public class extractMethod {
         }
         return cnt;
     }
-    private double calcSim(methodInfomation methodA, methodInfomation methodB) {
+    static double calcSim(MethodFeatures featuresA, MethodFeatures featuresB) {
         double sim = 0;
-        String nameA = methodA.name;
-        String nameB = methodB.name;
-        double nameSimilar = wordSimilar(nameA, nameB);
+        double nameSimilar = wordSimilar(featuresA.nameWords, featuresB.nameWords);
         double commentSimilar = 0;
-        String commentA = methodA.comment;
-        String commentB = methodB.comment;
-        if (commentA.equals("") || commentB.equals("")) {
+        if (featuresA.commentWords == null || featuresB.commentWords == null) {
             commentSimilar = 0;
         } else {
-            commentA = Utils.getComment(commentA);
-            commentB = Utils.getComment(commentB);
-            commentSimilar = wordSimilar(commentA, commentB);
+            commentSimilar = wordSimilar(featuresA.commentWords, featuresB.commentWords);
         }
         sim += Math.max(nameSimilar, commentSimilar);
 
-        String mA = "class test { + \n" + methodA.body + "\n}";
-        ASTParser astParserA = Utils.getNewASTParser();
-        astParserA.setSource(mA.toCharArray());
-        CompilationUnit cuA = (CompilationUnit) astParserA.createAST(null);
-        SimpleNameVisitor visitorA = new SimpleNameVisitor();
-        cuA.accept(visitorA);
-
-        String mB = "class test { + \n" + methodB.body + "\n}";
-        ASTParser astParserB = Utils.getNewASTParser();
-        astParserB.setSource(mB.toCharArray());
-        CompilationUnit cuB = (CompilationUnit) astParserB.createAST(null);
-        SimpleNameVisitor visitorB = new SimpleNameVisitor();
-        cuB.accept(visitorB);
+        int numA = featuresA.identifiers.length, numB = featuresB.identifiers.length;
+        sim += 2.0 * commonCount(featuresA.identifiers, featuresB.identifiers) / (numA + numB);
 
-        int numA = visitorA.names.size(), numB = visitorB.names.size();
-        visitorA.names.retainAll(visitorB.names);
-        sim += 2.0 * (visitorA.names.size()) / (numA + numB);
-
-        astParserA = Utils.getNewASTParser();
-        astParserA.setSource(mA.toCharArray());
-        cuA = (CompilationUnit) astParserA.createAST(null);
-        PostNodeVisitor visitorA1 = new PostNodeVisitor();
-        cuA.accept(visitorA1);
-
-        astParserB = Utils.getNewASTParser();
-        astParserB.setSource(mB.toCharArray());
-        cuB = (CompilationUnit) astParserB.createAST(null);
-        PostNodeVisitor visitorA2 = new PostNodeVisitor();
-        cuB.accept(visitorA2);
-
-        sim += 2.0 * (longestCommonSubsequence(visitorA1.nodes, visitorA2.nodes)) / (visitorA1.nodes.size() + visitorA2.nodes.size());
+        sim += 2.0 * (LCS.length(featuresA.nodePattern, featuresB.nodePattern)) / (featuresA.nodeTypes.length + featuresB.nodeTypes.length);
 
         return sim;
     }
+    /**
+     * @return the number of values two sorted arrays of distinct ints have in common
+     */
+    static int commonCount(int[] a, int[] b) {
+        int common = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                common++;
+                i++;
+                j++;
+            }
+        }
+        return common;
+    }
     private static String getCodeToChange(lineAndInvocation invocation, methodInfomation method, MethodDeclaration md) {
         List<changeInfomation> changes = new ArrayList<>();
         Map<String, String> newToOld = new HashMap<>();
@@ -319,28 +705,7 @@ public class extractMethod {
         return body;
     }
 
-    private static int longestCommonSubsequence(ArrayList<String> A, ArrayList<String> B) {
-        int lenA = A.size();
-        int lenB = B.size();
-        if (lenA == 0 || lenB == 0) {
-            return 0;
-        }
-
-        int[][] res = new int[lenA + 1][lenB + 1];
-
-        for (int i = 1; i <= lenA; i++) {
-            for (int j = 1; j <= lenB; j++) {
-                res[i][j] = Math.max(res[i][j - 1], res[i - 1][j]);
-                if (A.get(i - 1).equals(B.get(j - 1))) {
-                    res[i][j] = Math.max(res[i][j], res[i - 1][j - 1] + 1);
-                }
-            }
-        }
-
-        return res[lenA][lenB];
-    }
-
-    private static ArrayList<String> splitWord(String str) {
+    static ArrayList<String> splitWord(String str) {
         ArrayList<String> result = new ArrayList<>();
         int start = 0;
         for (int i = 0; i < str.length(); i++) {
@@ -359,18 +724,9 @@ public class extractMethod {
         return result;
     }
 
-    private double wordSimilar(String nameA, String nameB) {
-        ArrayList<String> wordsA = splitWord(nameA);
-        ArrayList<String> wordsB = splitWord(nameB);
-        int lcs = longestCommonSubsequence(wordsA, wordsB);
-        return 2.0 * lcs / (wordsA.size() + wordsB.size());
-    }
-
-    private static boolean isSimilar(String nameA, String nameB, double threshold) {
-        ArrayList<String> wordsA = splitWord(nameA);
-        ArrayList<String> wordsB = splitWord(nameB);
-        int lcs = longestCommonSubsequence(wordsA, wordsB);
-        return 1.0 * lcs / Math.min(wordsA.size(), wordsB.size()) >= threshold;
+    private static double wordSimilar(LCS.Pattern wordsA, LCS.Pattern wordsB) {
+        int lcs = LCS.length(wordsA, wordsB);
+        return 2.0 * lcs / (wordsA.length() + wordsB.length());
     }
 
     private static Map<String, methodInfomation> getNameToComment(String method) {
@@ -382,26 +738,4 @@ public class extractMethod {
         return visitor.methods;
     }
 
-    private static List<Refactoring> getExtractedMethods(String oldMethod, String newMethod) {
-        GitHistoryRefactoringMiner miner = new GitHistoryRefactoringMinerImpl();
-        Map<String, String> fileContentsBefore = new HashMap<>();
-        Map<String, String> fileContentsAfter = new HashMap<>();
-        fileContentsBefore.put("src/test.java", oldMethod);
-        fileContentsAfter.put("src/test.java", newMethod);
-        // populate the maps
-        List<Refactoring> refs = new ArrayList<>();
-
-        miner.detectAtFileContents(fileContentsBefore, fileContentsAfter, new RefactoringHandler() {
-            @Override
-            public void handle(String commitId, List<Refactoring> refactorings) {
-                for (Refactoring ref : refactorings) {
-                    if (ref.getRefactoringType() == RefactoringType.EXTRACT_OPERATION) {
-                        // System.out.println(ref.toString());
-                        refs.add(ref);
-                    }
-                }
-            }
-        });
-        return refs;
-    }
 }
@@ -0,0 +1,18 @@
+package extract;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class lineAndInvocation {
+    public int line;
+    public String InvocationName;
+    public int startPostion, endPostion;
+    public List<String> arguments;
+    public lineAndInvocation(int line, String InvocationName, int startPostion, int endPostion) {
+        this.line = line;
+        this.InvocationName = InvocationName;
+        this.startPostion = startPostion;
+        this.endPostion = endPostion;
+        this.arguments = new ArrayList<String>();
+    }
+}
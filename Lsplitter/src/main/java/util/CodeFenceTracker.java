@@ -0,0 +1,105 @@
+package util;
+
+import java.util.function.Consumer;
+
+/**
+ * Follows the markdown code fences of an answer while it is streamed.
+ * <p>
+ * Text is fed in arbitrary pieces. Complete lines are scanned for ``` fences; every line inside a
+ * code block is passed to the listener as soon as it is complete, and {@link #feed} reports when the
+ * expected number of code blocks has been closed, so the rest of the answer (usually prose) need not
+ * be received at all. {@link #text()} then ends with the closing fence, which is what
+ * {@link Utils#getCodeFromAnswer} expects.
+ */
+public class CodeFenceTracker {
+    private final int expectedBlocks;
+    private final Consumer<String> onCodeLine;
+    private final StringBuilder text = new StringBuilder();
+    private final StringBuilder code = new StringBuilder();
+    private int scanned;
+    private int closedBlocks;
+    private boolean inCode;
+    private boolean complete;
+
+    /**
+     * @param expectedBlocks number of code blocks after which the answer is complete; 0 if it is only
+     *                       complete at its end
+     */
+    public CodeFenceTracker(int expectedBlocks) {
+        this(expectedBlocks, null);
+    }
+
+    /**
+     * @param onCodeLine called with every complete line inside a code block, may be null
+     */
+    public CodeFenceTracker(int expectedBlocks, Consumer<String> onCodeLine) {
+        this.expectedBlocks = expectedBlocks;
+        this.onCodeLine = onCodeLine;
+    }
+
+    /**
+     * @return true once the expected code blocks are complete; later pieces are ignored
+     */
+    public boolean feed(String piece) {
+        if (complete) {
+            return true;
+        }
+        text.append(piece);
+        int newline;
+        while (!complete && (newline = text.indexOf("\n", scanned)) >= 0) {
+            scanLine(scanned, newline);
+            scanned = newline + 1;
+        }
+        return complete;
+    }
+
+    /**
+     * Scans the last line, which has no trailing newline, once the stream has ended.
+     */
+    public void finish() {
+        if (!complete && scanned < text.length()) {
+            scanLine(scanned, text.length());
+            scanned = text.length();
+        }
+    }
+
+    private void scanLine(int start, int end) {
+        String line = text.substring(start, end);
+        if (line.trim().startsWith("```")) {
+            if (inCode) {
+                inCode = false;
+                closedBlocks++;
+                if (expectedBlocks > 0 && closedBlocks >= expectedBlocks) {
+                    complete = true;
+                    // drop whatever follows the closing fence
+                    text.setLength(text.indexOf("```", start) + 3);
+                }
+            } else {
+                inCode = true;
+            }
+        } else if (inCode) {
+            code.append(line).append("\n");
+            if (onCodeLine != null) {
+                onCodeLine.accept(line);
+            }
+        }
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the answer received so far, cut after the last expected closing fence
+     */
+    public String text() {
+        return text.toString();
+    }
+
+    /**
+     * @return the complete code lines received so far
+     */
+    public String partialCode() {
+        return code.toString();
+    }
+}
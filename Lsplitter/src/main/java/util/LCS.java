@@ -0,0 +1,124 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Length of the longest common subsequence of two sequences of symbols encoded as ints.
+ * <p>
+ * {@link #length} is the bit-parallel algorithm of Hyyro (2004): the columns of the dynamic-programming
+ * table are kept as bit vectors over the shorter sequence and updated 64 cells at a time, in
+ * O(n * ceil(m/64)) time and O(m) memory. A {@link Pattern} keeps the match masks of a sequence, so that
+ * a sequence compared many times pays for them once. {@link #lengthByTable} is the plain table, which
+ * LCSBenchmark checks it against.
+ */
+public class LCS {
+    /** the bit vector of {@link #length}, kept per thread so that comparing two patterns allocates nothing */
+    private static final ThreadLocal<long[]> scratch = ThreadLocal.withInitial(() -> new long[16]);
+
+    /**
+     * A sequence with its match masks: bit j of the mask of x is set when sequence[j] == x. The masks are
+     * built once, so a sequence compared with many others does not build them again. Immutable.
+     */
+    public static final class Pattern {
+        private final int[] sequence;
+        /** the distinct symbols, sorted, and the mask of each */
+        private final int[] symbols;
+        private final long[][] masks;
+
+        public Pattern(int[] sequence) {
+            this.sequence = sequence;
+            int[] sorted = sequence.clone();
+            Arrays.sort(sorted);
+            int distinct = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[distinct++] = sorted[i];
+                }
+            }
+            symbols = Arrays.copyOf(sorted, distinct);
+            int words = (sequence.length + 63) >>> 6;
+            masks = new long[distinct][words];
+            for (int j = 0; j < sequence.length; j++) {
+                masks[Arrays.binarySearch(symbols, sequence[j])][j >>> 6] |= 1L << (j & 63);
+            }
+        }
+
+        public int length() {
+            return sequence.length;
+        }
+
+        private long[] mask(int x) {
+            int k = Arrays.binarySearch(symbols, x);
+            return k < 0 ? null : masks[k];
+        }
+    }
+
+    public static int length(int[] a, int[] b) {
+        if (b.length > a.length) {
+            int[] t = a;
+            a = b;
+            b = t;
+        }
+        return length(a, new Pattern(b));
+    }
+
+    /**
+     * The masks are taken from the shorter of the two patterns.
+     */
+    public static int length(Pattern a, Pattern b) {
+        return b.length() > a.length() ? length(b.sequence, a) : length(a.sequence, b);
+    }
+
+    private static int length(int[] a, Pattern b) {
+        int m = b.length();
+        if (a.length == 0 || m == 0) {
+            return 0;
+        }
+        int words = (m + 63) >>> 6;
+        long[] v = scratch.get();
+        if (v.length < words) {
+            v = new long[Math.max(words, 2 * v.length)];
+            scratch.set(v);
+        }
+        Arrays.fill(v, 0, words, -1L);
+        for (int x : a) {
+            long[] mask = b.mask(x);
+            if (mask == null) {
+                // u = 0, so v = (v + 0) | (v - 0) = v
+                continue;
+            }
+            long carry = 0;
+            long borrow = 0;
+            for (int w = 0; w < words; w++) {
+                long u = v[w] & mask[w];
+                long sum = v[w] + u + carry;
+                carry = Long.compareUnsigned(sum, v[w]) < 0 || carry != 0 && sum == v[w] ? 1 : 0;
+                long diff = v[w] - u - borrow;
+                borrow = Long.compareUnsigned(v[w], u) < 0 || borrow != 0 && v[w] == u ? 1 : 0;
+                v[w] = sum | diff;
+            }
+        }
+        int zeros = 0;
+        for (int w = 0; w < words; w++) {
+            long valid = w == words - 1 && (m & 63) != 0 ? (1L << (m & 63)) - 1 : -1L;
+            zeros += Long.bitCount(~v[w] & valid);
+        }
+        return zeros;
+    }
+
+    public static int lengthByTable(int[] a, int[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return 0;
+        }
+        int[][] res = new int[a.length + 1][b.length + 1];
+        for (int i = 1; i <= a.length; i++) {
+            for (int j = 1; j <= b.length; j++) {
+                res[i][j] = Math.max(res[i][j - 1], res[i - 1][j]);
+                if (a[i - 1] == b[j - 1]) {
+                    res[i][j] = Math.max(res[i][j], res[i - 1][j - 1] + 1);
+                }
+            }
+        }
+        return res[a.length][b.length];
+    }
+}
@@ -0,0 +1,245 @@
+package util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the time of a run goes: a latency histogram per pipeline stage (LLM wait, Extract Method
+ * detection on the JDT trees and with RefactoringMiner, JDT parsing, similarity, rewriting), named
+ * counters, and the iterations and tokens of the processed files: totals over all of them, and the
+ * records of the last {@code maxFiles} files, so that a long-running server does not keep every record.
+ * Everything is thread-safe, so one instance can be shared by all workers; {@link #toJson()} can be
+ * called at any time, from {@link #serve} while the run goes on or at its end.
+ */
+public class Metrics {
+    public static final String LLM = "llm";
+    public static final String AST_DETECTION = "astDetection";
+    public static final String REFACTORING_MINER = "refactoringMiner";
+    public static final String JDT_PARSE = "jdtParse";
+    public static final String CALC_SIM = "calcSim";
+    public static final String REWRITE = "rewrite";
+    public static final String FILE = "file";
+
+    private static final Metrics defaultMetrics = new Metrics();
+
+    private final Map<String, Histogram> stages = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final int maxFiles;
+    private final Deque<FileRecord> files = new ArrayDeque<>();
+    private final FileTotals fileTotals = new FileTotals();
+    private final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    /**
+     * @param maxFiles number of the most recent file records kept; the totals cover all files
+     */
+    public Metrics(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    public Metrics() {
+        this(1000);
+    }
+
+    /**
+     * @return the instance extractMethod reports to unless it is given another one
+     */
+    public static Metrics getDefault() {
+        return defaultMetrics;
+    }
+
+    /**
+     * @return the start of a measurement, to be passed to {@link #record}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos} for the given stage.
+     */
+    public void record(String stage, long startNanos) {
+        stages.computeIfAbsent(stage, s -> new Histogram()).add((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public void add(String counter, long delta) {
+        counters.computeIfAbsent(counter, c -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public synchronized void addFile(FileRecord file) {
+        fileTotals.add(file);
+        files.addLast(file);
+        if (files.size() > maxFiles) {
+            files.removeFirst();
+        }
+    }
+
+    public long getCounter(String counter) {
+        AtomicLong value = counters.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    public ObjectNode toJson() {
+        ObjectNode root = mapper.createObjectNode();
+        ObjectNode stageNode = root.putObject("stages");
+        for (Map.Entry<String, Histogram> stage : new TreeMap<>(stages).entrySet()) {
+            stage.getValue().toJson(stageNode.putObject(stage.getKey()));
+        }
+        ObjectNode counterNode = root.putObject("counters");
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(counters).entrySet()) {
+            counterNode.put(counter.getKey(), counter.getValue().get());
+        }
+        synchronized (this) {
+            fileTotals.toJson(root.putObject("fileTotals"));
+            ArrayNode fileNode = root.putArray("files");
+            for (FileRecord file : files) {
+                file.toJson(fileNode.addObject());
+            }
+        }
+        return root;
+    }
+
+    public void writeJson(File file) throws IOException {
+        mapper.writeValue(file, toJson());
+    }
+
+    /**
+     * Serves the current metrics as JSON on {@code http://localhost:port/metrics} until the server is stopped.
+     */
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = mapper.writeValueAsBytes(toJson());
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Latencies in power-of-two buckets of microseconds; percentiles are the upper bound of their bucket.
+     */
+    static class Histogram {
+        private final long[] buckets = new long[64];
+        private long count;
+        private long totalMicros;
+        private long maxMicros;
+
+        synchronized void add(long micros) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(0, micros))]++;
+            count++;
+            totalMicros += micros;
+            maxMicros = Math.max(maxMicros, micros);
+        }
+
+        private long percentileMicros(double percentile) {
+            long rank = (long) Math.ceil(percentile / 100.0 * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(maxMicros, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return maxMicros;
+        }
+
+        synchronized void toJson(ObjectNode node) {
+            node.put("count", count);
+            node.put("totalMillis", totalMicros / 1000.0);
+            node.put("meanMillis", count == 0 ? 0 : totalMicros / 1000.0 / count);
+            node.put("p50Millis", percentileMicros(50) / 1000.0);
+            node.put("p90Millis", percentileMicros(90) / 1000.0);
+            node.put("p99Millis", percentileMicros(99) / 1000.0);
+            node.put("maxMillis", maxMicros / 1000.0);
+        }
+    }
+
+    /**
+     * The sums of the file records, including those no longer kept.
+     */
+    static class FileTotals {
+        private long files;
+        private long failed;
+        private long millis;
+        private long mergeIterations;
+        private long inlineIterations;
+        private long prompts;
+        private long cachedPrompts;
+        private long promptTokens;
+        private long completionTokens;
+
+        void add(FileRecord file) {
+            files++;
+            failed += file.failed ? 1 : 0;
+            millis += file.millis;
+            mergeIterations += file.mergeIterations.get();
+            inlineIterations += file.inlineIterations.get();
+            prompts += file.prompts.get();
+            cachedPrompts += file.cachedPrompts.get();
+            promptTokens += file.promptTokens.get();
+            completionTokens += file.completionTokens.get();
+        }
+
+        void toJson(ObjectNode node) {
+            node.put("files", files);
+            node.put("failed", failed);
+            node.put("millis", millis);
+            node.put("mergeIterations", mergeIterations);
+            node.put("inlineIterations", inlineIterations);
+            node.put("prompts", prompts);
+            node.put("cachedPrompts", cachedPrompts);
+            node.put("promptTokens", promptTokens);
+            node.put("completionTokens", completionTokens);
+        }
+    }
+
+    /**
+     * What one call of extractMethod.getExtractedMethod did. Prompts of one file may be answered
+     * concurrently, hence the atomic counters.
+     */
+    public static class FileRecord {
+        public final String name;
+        public final AtomicLong mergeIterations = new AtomicLong();
+        public final AtomicLong inlineIterations = new AtomicLong();
+        public final AtomicLong prompts = new AtomicLong();
+        public final AtomicLong cachedPrompts = new AtomicLong();
+        public final AtomicLong promptTokens = new AtomicLong();
+        public final AtomicLong completionTokens = new AtomicLong();
+        public volatile long millis;
+        public volatile boolean failed;
+
+        public FileRecord(String name) {
+            this.name = name;
+        }
+
+        void toJson(ObjectNode node) {
+            node.put("name", name);
+            node.put("millis", millis);
+            node.put("failed", failed);
+            node.put("mergeIterations", mergeIterations.get());
+            node.put("inlineIterations", inlineIterations.get());
+            node.put("prompts", prompts.get());
+            node.put("cachedPrompts", cachedPrompts.get());
+            node.put("promptTokens", promptTokens.get());
+            node.put("completionTokens", completionTokens.get());
+        }
+    }
+}
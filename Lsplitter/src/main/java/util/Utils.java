@@ -5,6 +5,7 @@ import org.eclipse.jdt.core.dom.ASTParser;
 import org.eclipse.jdt.core.dom.CompilationUnit;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -27,6 +28,26 @@ public class Utils {
             return answer.trim();
         }
     }
+    /**
+     * @return the contents of all complete ``` code blocks of the answer, in order
+     */
+    public static List<String> getCodeBlocksFromAnswer(String answer) {
+        List<String> blocks = new ArrayList<>();
+        StringBuilder block = null;
+        for (String line : answer.split("\n")) {
+            if (line.trim().startsWith("```")) {
+                if (block == null) {
+                    block = new StringBuilder();
+                } else {
+                    blocks.add(block.toString().trim());
+                    block = null;
+                }
+            } else if (block != null) {
+                block.append(line).append("\n");
+            }
+        }
+        return blocks;
+    }
     public static int countSubstringOccurrences(String text, String pattern) {
         int count = 0;
         int index = 0;
@@ -0,0 +1,32 @@
+package util;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives every distinct string a small int id, so that sequences and sets of words can be compared as
+ * ints. Ids are only meaningful within one vocabulary. A vocabulary only grows, so it is kept for one
+ * file or one run, not for the life of the process.
+ */
+public class Vocabulary {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    public int id(String word) {
+        Integer id = ids.get(word);
+        return id != null ? id : ids.computeIfAbsent(word, w -> next.getAndIncrement());
+    }
+
+    public int[] encode(List<String> words) {
+        int[] encoded = new int[words.size()];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = id(words.get(i));
+        }
+        return encoded;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
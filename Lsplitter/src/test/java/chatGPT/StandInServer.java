@@ -0,0 +1,267 @@
+package chatGPT;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline stand-in for the chat-completions endpoint used by queryGPT4, for load tests without network access.
+ * <p>
+ * Answers come, in this order, from the recorded answer store (an {@link AnswerCache} filled by earlier
+ * runs), from {@code data/result_chatGPT} for decomposition prompts of {@code data/original}, or are
+ * synthesised: a merge prompt gets its first method back under a new name, an invocation prompt gets
+ * the first invocation calling that name (a combined prompt gets both), and any other prompt gets its first code block echoed.
+ * Latency, stragglers, error rate and 429 rate are configurable; streamed requests are answered as server-sent events.
+ */
+public class StandInServer {
+    public String toolVersion = AnswerCache.TOOL_VERSION;
+    public long baseLatencyMillis = 200;
+    public double millisPerToken = 2;
+    public double latencyJitter = 0.5;
+    public double errorRate = 0;
+    public double rateLimitRate = 0;
+    public long retryAfterMillis = 500;
+    public double tailRate = 0;
+    public long tailMillis = 10_000;
+
+    private final HttpServer server;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, String> decompositions = new ConcurrentHashMap<>();
+    private AnswerCache recorded;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong fromStore = new AtomicLong();
+    private final AtomicLong fromData = new AtomicLong();
+    private final AtomicLong synthesised = new AtomicLong();
+
+    public StandInServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+        server.createContext("/v1/chat/completions", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    public static void main(String[] args) throws IOException {
+        StandInServer server = new StandInServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        server.loadData(new File(args.length > 1 ? args[1] : "../data"));
+        server.start();
+        System.out.println("Stand-in server listening on " + server.getUrl());
+    }
+
+    /**
+     * Registers the answers of {@code result_chatGPT/i.java} for the decomposition of {@code original/i_original.java}.
+     */
+    public void loadData(File dataDir) throws IOException {
+        File[] originals = new File(dataDir, "original").listFiles();
+        if (originals == null) {
+            return;
+        }
+        for (File original : originals) {
+            String id = original.getName().replace("_original.java", "");
+            File answer = new File(new File(dataDir, "result_chatGPT"), id + ".java");
+            if (answer.exists()) {
+                addDecomposition(Utils.readFromFile(original), Utils.readFromFile(answer));
+            }
+        }
+    }
+
+    public void addDecomposition(String method, String decomposed) {
+        decompositions.put(normalize(method), decomposed);
+    }
+
+    public void setRecordedAnswers(AnswerCache cache) {
+        this.recorded = cache;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            JsonNode request = mapper.readTree(exchange.getRequestBody());
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < rateLimitRate) {
+                rateLimited.incrementAndGet();
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterMillis / 1000.0));
+                sendError(exchange, 429, "rate_limit_exceeded", "Rate limit reached (stand-in)");
+                return;
+            }
+            if (random.nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                sendError(exchange, 500, "server_error", "Internal error (stand-in)");
+                return;
+            }
+            String prompt = request.path("messages").path(0).path("content").asText();
+            String answer = answer(request, prompt);
+            int answerTokens = Tokens.count(queryGPT4.MODEL, answer);
+            long latency = (long) ((baseLatencyMillis + millisPerToken * answerTokens) * (1 + latencyJitter * (random.nextDouble() * 2 - 1)));
+            if (random.nextDouble() < tailRate) {
+                // a straggler: the provider sits on this request before answering
+                Thread.sleep(tailMillis);
+            }
+            if (request.path("stream").asBoolean(false)) {
+                stream(exchange, answer, Math.max(0, latency - baseLatencyMillis) / Math.max(1, answerTokens));
+            } else {
+                Thread.sleep(Math.max(0, latency));
+                ObjectNode response = mapper.createObjectNode();
+                response.put("id", "chatcmpl-standin-" + requests.get());
+                response.put("object", "chat.completion");
+                response.put("model", request.path("model").asText());
+                ObjectNode choice = response.putArray("choices").addObject();
+                choice.put("index", 0);
+                choice.putObject("message").put("role", "assistant").put("content", answer);
+                choice.put("finish_reason", "stop");
+                int promptTokens = Tokens.countPrompt(queryGPT4.MODEL, prompt);
+                response.putObject("usage").put("prompt_tokens", promptTokens).put("completion_tokens", answerTokens)
+                        .put("total_tokens", promptTokens + answerTokens);
+                send(exchange, 200, "application/json", mapper.writeValueAsBytes(response));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // the client closed a streamed answer early
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String answer(JsonNode request, String prompt) throws IOException {
+        if (recorded != null) {
+            byte[] key = AnswerCache.key(request.path("model").asText(), request.path("temperature").asDouble(),
+                    request.path("max_tokens").asInt(), prompt, toolVersion);
+            String answer = recorded.get(key);
+            if (answer != null) {
+                fromStore.incrementAndGet();
+                return answer;
+            }
+        }
+        String code = prompt.contains("```") ? Utils.getCodeFromAnswer(prompt.substring(0, prompt.indexOf("```", prompt.indexOf("```") + 3) + 3)) : "";
+        String decomposed = decompositions.get(normalize(code));
+        if (decomposed != null) {
+            fromData.incrementAndGet();
+            return "```java\n" + decomposed.trim() + "\n```";
+        }
+        synthesised.incrementAndGet();
+        if (prompt.contains("first the new method, then the new method invocation")) {
+            return "```java\n" + renameFirstMethod(code) + "\n```\n```java\n" + mergedInvocation(prompt) + "\n```";
+        }
+        if (prompt.contains("please merge them into one method")) {
+            return "```java\n" + renameFirstMethod(code) + "\n```";
+        }
+        if (prompt.contains("give me the new method invocation")) {
+            return "```java\n" + mergedInvocation(prompt) + "\n```";
+        }
+        return "```java\n" + code + "\n```";
+    }
+
+    private static String renameFirstMethod(String methods) {
+        String first = methods.substring(0, endOfFirstMethod(methods)).trim();
+        int paren = first.indexOf('(', first.lastIndexOf("*/") + 1);
+        int nameStart = paren;
+        while (nameStart > 0 && Character.isJavaIdentifierPart(first.charAt(nameStart - 1))) {
+            nameStart--;
+        }
+        String name = first.substring(nameStart, paren);
+        return first.substring(0, nameStart) + mergedName(name) + first.substring(paren);
+    }
+
+    private static String mergedInvocation(String prompt) {
+        String[] blocks = prompt.split("```java\n");
+        String invocations = blocks[blocks.length - 1];
+        String first = invocations.substring(0, invocations.indexOf(';') < 0 ? invocations.indexOf("```") : invocations.indexOf(';') + 1).trim();
+        int paren = first.indexOf('(');
+        int nameStart = paren;
+        while (nameStart > 0 && Character.isJavaIdentifierPart(first.charAt(nameStart - 1))) {
+            nameStart--;
+        }
+        return paren < 0 ? first : first.substring(0, nameStart) + mergedName(first.substring(nameStart, paren)) + first.substring(paren);
+    }
+
+    private static String mergedName(String name) {
+        return "merged" + (name.isEmpty() ? "" : Character.toUpperCase(name.charAt(0)) + name.substring(1));
+    }
+
+    /**
+     * @return the index just after the closing brace of the first method body
+     */
+    private static int endOfFirstMethod(String methods) {
+        int depth = 0;
+        for (int i = 0; i < methods.length(); i++) {
+            char ch = methods.charAt(i);
+            if (ch == '{') {
+                depth++;
+            } else if (ch == '}' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return methods.length();
+    }
+
+    private void stream(HttpExchange exchange, String answer, long millisPerPiece) throws IOException, InterruptedException {
+        exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        Thread.sleep(baseLatencyMillis);
+        OutputStream out = exchange.getResponseBody();
+        for (int i = 0; i < answer.length(); i += 4) {
+            ObjectNode chunk = mapper.createObjectNode();
+            chunk.put("object", "chat.completion.chunk");
+            chunk.putArray("choices").addObject().put("index", 0).putObject("delta")
+                    .put("content", answer.substring(i, Math.min(answer.length(), i + 4)));
+            out.write(("data: " + mapper.writeValueAsString(chunk) + "\n\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            if (millisPerPiece > 0) {
+                Thread.sleep(millisPerPiece);
+            }
+        }
+        out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        out.close();
+    }
+
+    private void sendError(HttpExchange exchange, int status, String type, String message) throws IOException {
+        ObjectNode error = mapper.createObjectNode();
+        error.putObject("error").put("message", message).put("type", type);
+        send(exchange, status, "application/json", mapper.writeValueAsBytes(error));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String normalize(String code) {
+        return code.replaceAll("\\s+", "");
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + requests.get() + ", fromStore=" + fromStore.get() + ", fromData=" + fromData.get()
+                + ", synthesised=" + synthesised.get() + ", errors=" + errors.get() + ", rateLimited=" + rateLimited.get();
+    }
+}
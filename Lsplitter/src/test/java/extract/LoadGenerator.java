@@ -0,0 +1,144 @@
+package extract;
+
+import chatGPT.HedgePolicy;
+import chatGPT.RetryPolicy;
+import chatGPT.StandInServer;
+import chatGPT.queryGPT4;
+import com.sun.net.httpserver.HttpServer;
+import util.Metrics;
+import util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pushes many methods through extractMethod against a local {@link StandInServer}, without network
+ * access or API cost, and reports the throughput and latency percentiles of whole files.
+ * <p>
+ * The methods of {@code data/original} are replayed first; further runs use copies whose method name is
+ * changed, so that every prompt is distinct. Arguments: data directory, number of runs, worker threads,
+ * base latency of the stand-in in ms, its error rate, its 429 rate, its rate of stragglers, and the
+ * hedging percentile and budget (no hedging when the percentile is 0). The stage metrics are written to
+ * {@code load-metrics.json}, and can be followed live on http://localhost:9090/metrics during the run.
+ */
+public class LoadGenerator {
+    public static void main(String[] args) throws Exception {
+        File dataDir = new File(args.length > 0 ? args[0] : "../data");
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 120;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        StandInServer server = new StandInServer(0);
+        server.baseLatencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 200;
+        server.errorRate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        server.rateLimitRate = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+        server.tailRate = args.length > 6 ? Double.parseDouble(args[6]) : 0;
+        double hedgePercentile = args.length > 7 ? Double.parseDouble(args[7]) : 0;
+        if (hedgePercentile > 0) {
+            queryGPT4.setHedgePolicy(new HedgePolicy(hedgePercentile, 20, args.length > 8 ? Long.parseLong(args[8]) : 50));
+        }
+        server.loadData(dataDir);
+        server.start();
+
+        File[] originals = new File(dataDir, "original").listFiles((dir, name) -> name.endsWith("_original.java"));
+        if (originals == null || originals.length == 0) {
+            System.out.println("No methods found in " + dataDir);
+            server.stop();
+            return;
+        }
+        File work = Files.createTempDirectory("lsplitter-load").toFile();
+        List<File> inputs = new ArrayList<>();
+        for (int i = 0; i < runs; i++) {
+            File original = originals[i % originals.length];
+            int copy = i / originals.length;
+            if (copy == 0) {
+                inputs.add(original);
+                continue;
+            }
+            String method = Utils.readFromFile(original);
+            String id = original.getName().replace("_original.java", "");
+            File variant = new File(work, id + "_" + copy + "_original.java");
+            Utils.writeToFile(rename(method, copy), variant);
+            File answer = new File(new File(dataDir, "result_chatGPT"), id + ".java");
+            if (answer.exists()) {
+                server.addDecomposition(rename(method, copy), rename(Utils.readFromFile(answer), copy, methodName(method)));
+            }
+            inputs.add(variant);
+        }
+
+        queryGPT4.setRetryPolicy(RetryPolicy.defaultPolicy());
+        String apiKey = "sk-standin";
+        String apiUrl = server.getUrl();
+        HttpServer live = Metrics.getDefault().serve(9090);
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (File input : inputs) {
+            futures.add(pool.submit(() -> {
+                long begin = System.nanoTime();
+                try {
+                    new extractMethod(input, apiKey, apiUrl, null).getExtractedMethod();
+                    latencies.add((System.nanoTime() - begin) / 1_000_000);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.out.println(input.getName() + " failed: " + e);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        pool.shutdown();
+        server.stop();
+        live.stop(0);
+        Metrics.getDefault().writeJson(new File("load-metrics.json"));
+
+        Collections.sort(latencies);
+        System.out.println("files: " + latencies.size() + " done, " + failed.get() + " failed, " + elapsed + " ms");
+        System.out.printf("throughput: %.2f files/s%n", latencies.size() * 1000.0 / Math.max(1, elapsed));
+        System.out.println("latency ms: p50=" + percentile(latencies, 50) + ", p90=" + percentile(latencies, 90)
+                + ", p99=" + percentile(latencies, 99) + ", max=" + percentile(latencies, 100));
+        System.out.println("server: " + server);
+        System.out.println("retries: " + queryGPT4.getRetryPolicy());
+        System.out.println("request latency: " + queryGPT4.getLatencies());
+        if (queryGPT4.getHedgePolicy() != null) {
+            System.out.println("hedging: " + queryGPT4.getHedgePolicy());
+        }
+        System.out.println("stages: " + Metrics.getDefault().toJson().get("stages"));
+        System.out.println("single flight: " + queryGPT4.getSingleFlight().getShared() + " of " + queryGPT4.getSingleFlight().getCalls() + " calls shared");
+        System.exit(0);
+    }
+
+    static long percentile(List<Long> sorted, int p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static String methodName(String method) {
+        Matcher matcher = Pattern.compile("(\\w+)\\s*\\(").matcher(method.substring(0, Math.max(0, method.indexOf('{'))));
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static String rename(String method, int copy) {
+        return rename(method, copy, methodName(method));
+    }
+
+    private static String rename(String code, int copy, String name) {
+        return name == null ? code : code.replaceAll("\\b" + name + "\\b", name + "V" + copy);
+    }
+}
@@ -1,5 +1,9 @@
 package extract;
 
+import chatGPT.AnswerCache;
+import chatGPT.RateLimiter;
+import chatGPT.queryGPT4;
+import util.Metrics;
 import util.Utils;
 
 import java.io.File;
@@ -9,10 +13,15 @@ public class Lsplitter {
     public static void main(String[] args) throws IOException, InterruptedException {
         String apiKey = "sk-xxxxxx"; // Your APIKEY
         String apiUrl = "https://api.openai.com/";
+        queryGPT4.setRateLimiter(RateLimiter.fromSystemProperties()); // -Dllm.requestsPerMinute and -Dllm.tokensPerMinute of your account
+        AnswerCache cache = new AnswerCache(new File("pathToTheAnswerCache"), 1L << 30);
         for (int i = 1; i <= 60; i++) {
             String originalFile = "pathToTheOriginalFile" + i + "_original.java";
             File original = new File(originalFile);
             extractMethod extract = new extractMethod(original, apiKey, apiUrl, null);
+            extract.setCache(cache);
+            // -Dllm.chunkTokens=2500 decomposes methods too long for one reply, e.g. 24 and 60, in fragments
+            extract.setChunkTokens(Integer.getInteger("llm.chunkTokens", 0));
             extract.getExtractedMethod();
             System.out.println(i + " finished!");
             String gptFile = "pathToSaveGPTResult" + i + ".java";
@@ -20,5 +29,7 @@ public class Lsplitter {
             Utils.writeToFile(extract.gptMethod, new File(gptFile));
             Utils.writeToFile(extract.resMethod, new File(resFile));
         }
+        cache.close();
+        Metrics.getDefault().writeJson(new File("pathToSaveMetrics.json"));
     }
 }
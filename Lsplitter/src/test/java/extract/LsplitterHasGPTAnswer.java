@@ -1,5 +1,9 @@
 package extract;
 
+import chatGPT.AnswerCache;
+import chatGPT.RateLimiter;
+import chatGPT.queryGPT4;
+import util.Metrics;
 import util.Utils;
 
 import java.io.File;
@@ -9,6 +13,8 @@ public class LsplitterHasGPTAnswer {
     public static void main(String[] args) throws IOException, InterruptedException {
         String apiKey = "sk-xxxxxx"; // // Your APIKEY
         String apiUrl = "https://api.openai.com/";
+        queryGPT4.setRateLimiter(RateLimiter.fromSystemProperties()); // -Dllm.requestsPerMinute and -Dllm.tokensPerMinute of your account
+        AnswerCache cache = new AnswerCache(new File("pathToTheAnswerCache"), 1L << 30);
         for (int i = 1; i <= 60; i++) {
             if (i == 24 || i == 60) continue;
             String originalFile = "pathToTheOriginalFile" + i + "_original.java";
@@ -16,10 +22,13 @@ public class LsplitterHasGPTAnswer {
             String gptFile = "pathToTheGPTResult" + i + ".java";
             File gpt = new File(gptFile);
             extractMethod extract = new extractMethod(original, apiKey, apiUrl, gpt);
+            extract.setCache(cache);
             extract.getExtractedMethod();
             System.out.println(i + " finished!");
             String resFile = "pathToSaveLsplitterResult" + i + ".java";
             Utils.writeToFile(extract.resMethod, new File(resFile));
         }
+        cache.close();
+        Metrics.getDefault().writeJson(new File("pathToSaveMetrics.json"));
     }
 }
@@ -0,0 +1,87 @@
+package extract;
+
+import org.eclipse.jdt.core.dom.ASTParser;
+import util.Utils;
+import visitor.MDVisitor;
+import visitor.methodInfomation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Measures how well {@link MinHashIndex} finds the similar pairs among all methods of
+ * {@code data/result_chatGPT}: the pairs whose exact calcSim score is above a threshold are counted by
+ * scoring every pair, then compared with the candidates of the index. Arguments: data directory, bands,
+ * rows, shingle size and score threshold (2, the merge threshold, by default).
+ */
+public class MinHashBenchmark {
+    public static void main(String[] args) throws IOException {
+        File dataDir = new File(args.length > 0 ? args[0] : "../data");
+        int bands = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int shingleSize = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        double threshold = args.length > 4 ? Double.parseDouble(args[4]) : 2;
+
+        List<methodInfomation> methods = new ArrayList<>();
+        File[] files = new File(dataDir, "result_chatGPT").listFiles((dir, name) -> name.endsWith(".java"));
+        if (files == null) {
+            System.out.println("No methods found in " + dataDir);
+            return;
+        }
+        for (File file : files) {
+            String code = "class test {\n" + Utils.removeEmptyLines(Utils.readFromFile(file)) + "\n}\n";
+            ASTParser parser = Utils.getNewASTParser();
+            parser.setSource(code.toCharArray());
+            MDVisitor visitor = new MDVisitor();
+            parser.createAST(null).accept(visitor);
+            List<methodInfomation> found = new ArrayList<>(visitor.methods.values());
+            found.sort(Comparator.comparingInt(m -> m.startPosition));
+            methods.addAll(found);
+        }
+
+        // both ways need the features of every method; parse them first so that they are timed apart
+        MethodFeatures.Cache features = new MethodFeatures.Cache(4096);
+        long begin = System.nanoTime();
+        for (methodInfomation method : methods) {
+            features.get(method);
+        }
+        long featureNanos = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        MinHashIndex index = new MinHashIndex(bands, rows, shingleSize, 42, features);
+        for (methodInfomation method : methods) {
+            index.add(method);
+        }
+        long indexNanos = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        List<int[]> candidates = index.candidatePairs();
+        int found = 0;
+        for (int[] pair : candidates) {
+            if (index.score(pair[0], pair[1]) > threshold) {
+                found++;
+            }
+        }
+        long candidateNanos = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        int similar = 0;
+        long pairs = 0;
+        for (int i = 0; i < index.size(); i++) {
+            for (int j = i + 1; j < index.size(); j++) {
+                pairs++;
+                if (index.score(i, j) > threshold) {
+                    similar++;
+                }
+            }
+        }
+        long exactNanos = System.nanoTime() - begin;
+
+        System.out.printf("methods=%d pairs=%d similar=%d (score > %.2f)%n", index.size(), pairs, similar, threshold);
+        System.out.printf("bands=%d rows=%d shingle=%d: candidates=%d found=%d recall=%.3f precision=%.3f%n", bands, rows, shingleSize,
+                candidates.size(), found, similar == 0 ? 1 : (double) found / similar, candidates.isEmpty() ? 1 : (double) found / candidates.size());
+        System.out.printf("features %.1f ms, then index %.1f ms + scoring candidates %.1f ms, against scoring every pair %.1f ms%n",
+                featureNanos / 1e6, indexNanos / 1e6, candidateNanos / 1e6, exactNanos / 1e6);
+    }
+}
@@ -0,0 +1,131 @@
+package extract;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the merge search ({@link extractMethod#scoreRuns}, then the runs taken greedily as
+ * selectMergeRanges takes them) with the selection loop of the original search, on synthetic methods
+ * with hundreds of helpers invoked on consecutive lines: with many tied scores, with runs as long as the
+ * method, and with every pair equally similar, as for identical helpers, where every run ties with every
+ * other. The original loop scores every run pair by pair and takes the first run of the best score, in
+ * (start, end) order, while that score is above 2; it is repeated on the runs left free, as the search
+ * now takes every disjoint run. Both must select the same runs; on long runs the times show O(n^2)
+ * against O(n^4), except for the clones, whose runs are all near ties and are all summed again.
+ * Arguments: the sizes to try and the seed.
+ */
+public class RangeSearchBenchmark {
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0 ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray() : new int[]{100, 200, 400};
+        Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 42);
+        boolean identical = true;
+        for (int n : sizes) {
+            // few distinct scores and some statements: many tied runs of moderate length
+            identical &= run("ties", n, random, new double[]{0.7, 1.1, 2.3, 2.9, 3.0}, 25);
+            // continuous scores and empty helpers: every run spans the whole method
+            identical &= run("long", n, random, null, 0);
+            // clones: every run of the whole method has the same score
+            identical &= run("uniform", n, random, new double[]{2.5}, 0);
+        }
+        if (!identical) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean run(String scenario, int n, Random random, double[] values, int statementEvery) {
+        double[][] scores = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                scores[i][j] = scores[j][i] = values == null ? 1.5 + 1.5 * random.nextDouble() : values[random.nextInt(values.length)];
+            }
+        }
+        int[] lines = new int[n];
+        int[] ncss = new int[n];
+        for (int i = 0; i < n; i++) {
+            lines[i] = i + 1;
+            ncss[i] = statementEvery > 0 && random.nextInt(statementEvery) == 0 ? 1 : 0;
+        }
+        SimilarityMatrix sim = new SimilarityMatrix(scores);
+        int[] ends = extractMethod.runEnds(lines, ncss);
+
+        long begin = System.nanoTime();
+        int[][] original = originalSelection(sim, ends);
+        long originalNanos = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        int[][] incremental = greedySelection(extractMethod.scoreRuns(ends, sim), n);
+        long incrementalNanos = System.nanoTime() - begin;
+
+        boolean identical = Arrays.deepEquals(original, incremental);
+        System.out.printf("%s n=%d runs=%d selected=%d original=%.1f ms incremental=%.1f ms identical=%b%n", scenario, n,
+                runs(ends), original.length, originalNanos / 1e6, incrementalNanos / 1e6, identical);
+        return identical;
+    }
+
+    /**
+     * The selection loop of the original merge search, with its strict comparisons, repeated on the runs
+     * that do not overlap a taken one.
+     * @return the [start, end) of the runs taken, in the order they are taken
+     */
+    private static int[][] originalSelection(SimilarityMatrix sim, int[] ends) {
+        List<double[]> scored = new ArrayList<>();
+        for (int i = 0; i < ends.length; i++) {
+            for (int j = i + 1; j <= ends[i]; j++) {
+                scored.add(new double[]{extractMethod.scoreRun(sim, i, j), i, j + 1});
+            }
+        }
+        boolean[] taken = new boolean[ends.length];
+        List<int[]> selected = new ArrayList<>();
+        while (true) {
+            double curBest = 0; int st = -1, en = -1;
+            for (double[] run : scored) {
+                if (run[0] > curBest && free(taken, (int) run[1], (int) run[2])) {
+                    curBest = run[0];
+                    st = (int) run[1]; en = (int) run[2];
+                }
+            }
+            if (!(curBest > 2)) {
+                break;
+            }
+            Arrays.fill(taken, st, en, true);
+            selected.add(new int[]{st, en});
+        }
+        return selected.toArray(new int[0][]);
+    }
+
+    /**
+     * @return the [start, end) of the ranked runs selectMergeRanges takes, skipping the runs that overlap
+     * a taken one
+     */
+    private static int[][] greedySelection(List<double[]> ranked, int n) {
+        boolean[] taken = new boolean[n];
+        List<int[]> selected = new ArrayList<>();
+        for (double[] run : ranked) {
+            int st = (int) run[1], en = (int) run[2];
+            if (free(taken, st, en)) {
+                Arrays.fill(taken, st, en, true);
+                selected.add(new int[]{st, en});
+            }
+        }
+        return selected.toArray(new int[0][]);
+    }
+
+    private static boolean free(boolean[] taken, int st, int en) {
+        for (int i = st; i < en; i++) {
+            if (taken[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long runs(int[] ends) {
+        long runs = 0;
+        for (int i = 0; i < ends.length; i++) {
+            runs += ends[i] - i;
+        }
+        return runs;
+    }
+}
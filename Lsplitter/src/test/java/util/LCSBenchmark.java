@@ -0,0 +1,56 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the bit-parallel {@link LCS#length}, on arrays and on prebuilt {@link LCS.Pattern}s, against the
+ * plain table {@link LCS#lengthByTable} on random pairs: lengths around the 64-bit word boundaries, and alphabets from 2 symbols (long common subsequences)
+ * to 1000 (short ones), as for node types and words. Every pair must agree; the times of both are reported.
+ * Arguments: the number of pairs per alphabet, the maximum length and the seed.
+ */
+public class LCSBenchmark {
+    public static void main(String[] args) {
+        int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int maxLength = args.length > 1 ? Integer.parseInt(args[1]) : 700;
+        Random random = new Random(args.length > 2 ? Long.parseLong(args[2]) : 42);
+        int mismatches = 0;
+        for (int alphabet : new int[]{2, 4, 90, 1000}) {
+            long tableNanos = 0, bitNanos = 0, patternNanos = 0;
+            for (int p = 0; p < pairs; p++) {
+                int[] a = sequence(random, alphabet, maxLength);
+                int[] b = sequence(random, alphabet, maxLength);
+                long begin = System.nanoTime();
+                int expected = LCS.lengthByTable(a, b);
+                tableNanos += System.nanoTime() - begin;
+                begin = System.nanoTime();
+                int actual = LCS.length(a, b);
+                bitNanos += System.nanoTime() - begin;
+                LCS.Pattern patternA = new LCS.Pattern(a), patternB = new LCS.Pattern(b);
+                begin = System.nanoTime();
+                int fromPatterns = LCS.length(patternA, patternB);
+                patternNanos += System.nanoTime() - begin;
+                if (actual != expected || fromPatterns != expected) {
+                    mismatches++;
+                    System.out.println("MISMATCH " + actual + ", " + fromPatterns + " != " + expected + " for " + Arrays.toString(a) + " and " + Arrays.toString(b));
+                }
+            }
+            System.out.printf("alphabet=%d pairs=%d table=%.1f ms bit-parallel=%.1f ms on patterns=%.1f ms%n", alphabet, pairs,
+                    tableNanos / 1e6, bitNanos / 1e6, patternNanos / 1e6);
+        }
+        System.out.println("mismatches=" + mismatches);
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int[] sequence(Random random, int alphabet, int maxLength) {
+        // half of the lengths within a few symbols of a multiple of 64
+        int length = random.nextBoolean() ? random.nextInt(maxLength + 1) : Math.max(0, Math.min(maxLength, 64 * random.nextInt(maxLength / 64 + 1) + random.nextInt(5) - 2));
+        int[] sequence = new int[length];
+        for (int i = 0; i < length; i++) {
+            sequence[i] = random.nextInt(alphabet);
+        }
+        return sequence;
+    }
+}